@@ -0,0 +1,178 @@
+/*
+
+ Written by Andrey Rozenberg (jaera at yandex.com)
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+import ij.*;
+import ij.measure.Calibration;
+import ij.process.*;
+import java.util.Arrays;
+import loci.formats.ChannelSeparator;
+import loci.formats.FormatTools;
+import loci.formats.IFormatReader;
+import loci.formats.MetadataTools;
+import loci.formats.meta.IMetadata;
+import loci.plugins.util.ImageProcessorReader;
+import loci.plugins.util.LociPrefs;
+import ome.units.UNITS;
+import ome.units.quantity.Length;
+
+/**
+ * SeriesReader on top of Bio-Formats.
+ * <p>
+ * Compiled separately, so that the plugin can be built and used without Bio-Formats.
+ * The RGB channels are split by a ChannelSeparator, so that each channel
+ * is a plane of its own and only the requested ones are decoded.
+ */
+public class BioFormatsSeriesReader extends SeriesReader {
+	private String               file;    // file name for the log
+	private IFormatReader        source;  // the format reader
+	private ImageProcessorReader reader;  // the same with the RGB channels split
+	private IMetadata            meta;    // metadata of all series
+	private int[]                series;  // indices of the series that are images, i.e. not thumbnails
+
+	protected boolean setId(String file) {
+		this.file = file;
+		source = LociPrefs.makeImageReader();
+		reader = new ImageProcessorReader(new ChannelSeparator(source));
+		meta   = MetadataTools.createOMEXMLMetadata();
+		reader.setMetadataStore(meta);
+		// the resolution levels of pyramidal files are not series of their own, only the full resolution is read
+		reader.setFlattenedResolutions(false);
+		try {
+			reader.setId(file);
+		}
+		catch (Exception e) {  // not a format known to Bio-Formats
+			close();
+			return false;
+		}
+		int[] images = new int[reader.getSeriesCount()];
+		int   n      = 0;
+		for (int s = 0; s < images.length; s++) {
+			reader.setSeries(s);
+			if (!reader.isThumbnailSeries()) images[n++] = s;
+		}
+		series = Arrays.copyOf(images, n);
+		return true;
+	}
+
+	public int getSeriesCount() {
+		return series.length;
+	}
+
+	public int getChannelCount(int series) {
+		setSeries(series);
+		return reader.getSizeC();
+	}
+
+	public long estimateBytes(int series, int[] channels, boolean allPlanes) {
+		setSeries(series);
+		long plane  = (long)reader.getSizeX() * reader.getSizeY();
+		long planes = allPlanes ? (long)reader.getSizeZ() * reader.getSizeT() : 1;
+		if (isRGB()) return plane * planes * 4;
+		// 32-bit integers and doubles are converted to floats
+		return plane * planes * Math.min(4, FormatTools.getBytesPerPixel(reader.getPixelType())) * channels.length;
+	}
+
+	public ImagePlus openSeries(int series, int[] channels, boolean allPlanes) {
+		try {
+			setSeries(series);
+			int     width   = reader.getSizeX();
+			int     height  = reader.getSizeY();
+			int     nSlices = allPlanes ? reader.getSizeZ() : 1;
+			int     nFrames = allPlanes ? reader.getSizeT() : 1;
+			boolean isRGB   = isRGB();
+			byte[]  black   = isRGB ? new byte[width * height] : null;
+			ImageStack stack = new ImageStack(width, height);
+			for (int t = 0; t < nFrames; t++) {
+				for (int z = 0; z < nSlices; z++) {
+					if (isRGB) {
+						byte[][] rgb = new byte[][] { black, black, black };
+						for (int j = 0; j < channels.length; j++)
+							rgb[channels[j]] = (byte[])decode(z, channels[j], t).getPixels();
+						ColorProcessor cp = new ColorProcessor(width, height);
+						cp.setRGB(rgb[0], rgb[1], rgb[2]);
+						stack.addSlice(null, cp);
+					}
+					else {
+						for (int j = 0; j < channels.length; j++)
+							stack.addSlice(null, decode(z, channels[j], t));
+					}
+				}
+			}
+			String title = meta.getImageName(this.series[series]);
+			ImagePlus image = new ImagePlus(title != null ? title : "Series " + (this.series[series] + 1), stack);
+			image.setDimensions(isRGB ? 1 : channels.length, nSlices, nFrames);
+			image.setCalibration(getCalibration(this.series[series]));
+			return image;
+		}
+		catch (Exception e) {
+			IJ.log("Couldn't read series " + (this.series[series] + 1) + " of '" + file + "': " + e);
+			return null;
+		}
+	}
+
+	public void close() {
+		try {
+			reader.close();
+		}
+		catch (Exception e) {
+		}
+	}
+
+	/**
+	 * Select a series, counting the image series only, at full resolution
+	 */
+	private void setSeries(int series) {
+		reader.setSeries(this.series[series]);
+		reader.setResolution(0);
+	}
+
+	/**
+	 * Does the current series consist of 8-bit RGB images
+	 */
+	private boolean isRGB() {
+		return source.isRGB() && source.getRGBChannelCount() == 3 && reader.getSizeC() == 3 &&
+			reader.getPixelType() == FormatTools.UINT8;
+	}
+
+	/**
+	 * Decode a single plane of the current series
+	 */
+	private ImageProcessor decode(int z, int c, int t) throws Exception {
+		return reader.openProcessors(reader.getIndex(z, c, t))[0];
+	}
+
+	/**
+	 * The pixel size of the series in microns, if known
+	 */
+	private Calibration getCalibration(int series) {
+		Calibration cal = new Calibration();
+		Number x = micron(meta.getPixelsPhysicalSizeX(series));
+		Number y = micron(meta.getPixelsPhysicalSizeY(series));
+		Number z = micron(meta.getPixelsPhysicalSizeZ(series));
+		if (x == null || y == null) return cal;
+		cal.setUnit("micron");
+		cal.pixelWidth  = x.doubleValue();
+		cal.pixelHeight = y.doubleValue();
+		if (z != null) cal.pixelDepth = z.doubleValue();
+		return cal;
+	}
+
+	private static Number micron(Length length) {
+		return length != null ? length.value(UNITS.MICROMETER) : null;
+	}
+}
@@ -0,0 +1,417 @@
+/*
+
+ Written by Andrey Rozenberg (jaera at yandex.com)
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+import ij.*;
+import ij.measure.Calibration;
+import ij.process.*;
+import java.awt.image.ColorModel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A bit-packed binary mask: 64 pixels per long, each row starting at a new word.
+ * <p>
+ * Holds the particles of a binarized channel in 1/8 of the memory of the
+ * 8-bit image. The set bits are the pixels the particle analyzer would treat
+ * as particles; the LUT, calibration and title of the image are kept, so that
+ * the 8-bit image can be restored exactly when it is saved or shown.
+ * In 2D only the current slice is packed.
+ */
+public class BitMask {
+	private int width, height, nSlices;  // dimensions
+	private int wordsPerRow;              // longs per row
+	private long[][] words;               // the bits, one array per slice
+	private int foreground;               // 8-bit value of the set pixels (0 or 255)
+	private ColorModel cm;                // LUT of the image
+	private Calibration cal;              // calibration of the image
+	private String title;                 // title of the image
+
+	/**
+	 * A particle found by particles()
+	 */
+	public static class Particle {
+		public int pixelCount;            // number of pixels including the holes
+		public long xSum, ySum;           // sums of the pixel coordinates (for the centroid)
+		public int x, y, width, height;   // bounding rectangle
+	}
+
+	private BitMask(int width, int height, int nSlices) {
+		this.width       = width;
+		this.height      = height;
+		this.nSlices     = nSlices;
+		this.wordsPerRow = (width + 63) >>> 6;
+		this.words       = new long[nSlices][wordsPerRow * height];
+	}
+
+	/**
+	 * Pack a binary 8-bit image.
+	 * The foreground is determined as in ParticleAnalyzer for images without threshold
+	 *
+	 * @param  imp   the binary image
+	 * @param  is3d  pack all slices or only the current one
+	 * @return       the mask, or null if the image is not a binary 8-bit image
+	 */
+	public static BitMask pack(ImagePlus imp, boolean is3d) {
+		return pack(imp, is3d, !Prefs.blackBackground && !imp.isInvertedLut() ? 0 : 255);
+	}
+
+	/**
+	 * Pack a binary 8-bit image with the given foreground
+	 *
+	 * @param  imp         the binary image
+	 * @param  is3d        pack all slices or only the current one
+	 * @param  foreground  value of the particle pixels (0 or 255)
+	 * @return             the mask, or null if the image is not a binary 8-bit image
+	 */
+	public static BitMask pack(ImagePlus imp, boolean is3d, int foreground) {
+		if (imp.getBitDepth() != 8) return null;
+		ImageStack stack = imp.getStack();
+		int first = is3d ? 1 : imp.getCurrentSlice();
+		int last  = is3d ? stack.getSize() : first;
+		BitMask mask = new BitMask(imp.getWidth(), imp.getHeight(), last - first + 1);
+		mask.foreground = foreground;
+		mask.cm         = imp.getProcessor().getColorModel();
+		mask.cal        = imp.getCalibration();
+		mask.title      = imp.getTitle();
+		byte fg = (byte)mask.foreground;
+		byte bg = (byte)(255 - mask.foreground);
+		for (int n = first; n <= last; n++) {
+			byte[] pixels = (byte[])stack.getPixels(n);
+			long[] bits = mask.words[n - first];
+			for (int y = 0, offset = 0; y < mask.height; y++) {
+				int base = y * mask.wordsPerRow;
+				for (int x = 0; x < mask.width; x++, offset++) {
+					byte v = pixels[offset];
+					if (v == fg) bits[base + (x >>> 6)] |= 1L << x;
+					else if (v != bg) return null;
+				}
+			}
+		}
+		return mask;
+	}
+
+	/**
+	 * Restore the 8-bit image
+	 *
+	 * @param  pool  pool to take the pixel arrays from (may be null)
+	 * @return       the image
+	 */
+	public ImagePlus toImagePlus(PixelBufferPool pool) {
+		ImageStack stack = new ImageStack(width, height);
+		byte fg = (byte)foreground;
+		byte bg = (byte)(255 - foreground);
+		for (int n = 0; n < nSlices; n++) {
+			byte[] pixels = pool != null ? (byte[])pool.get(width, height, 8) : new byte[width * height];
+			long[] bits = words[n];
+			for (int y = 0, offset = 0; y < height; y++) {
+				int base = y * wordsPerRow;
+				for (int x = 0; x < width; x++, offset++)
+					pixels[offset] = (bits[base + (x >>> 6)] & (1L << x)) != 0 ? fg : bg;
+			}
+			stack.addSlice(null, new ByteProcessor(width, height, pixels, cm));
+		}
+		ImagePlus imp = new ImagePlus(title, stack);
+		imp.setCalibration(cal);
+		return imp;
+	}
+
+	/**
+	 * Combine two masks the way "AND" combines the 8-bit images.
+	 * The result gets the LUT and calibration of this mask
+	 *
+	 * @param  other  the other mask
+	 * @param  title  title of the result
+	 * @return        the combined mask, or null if the masks do not match
+	 */
+	public BitMask and(BitMask other, String title) {
+		if (other.width != width || other.height != height || other.nSlices != nSlices || other.foreground != foreground) return null;
+		BitMask result = new BitMask(width, height, nSlices);
+		result.foreground = foreground;
+		result.cm         = cm;
+		result.cal        = cal;
+		result.title      = title;
+		// 255 & 255 = 255, 0 & x = 0: with foreground 0 a pixel is set if it is set in either mask
+		boolean union = foreground == 0;
+		for (int n = 0; n < nSlices; n++) {
+			long[] a = words[n], b = other.words[n], c = result.words[n];
+			if (union) for (int i = 0; i < c.length; i++) c[i] = a[i] | b[i];
+			else       for (int i = 0; i < c.length; i++) c[i] = a[i] & b[i];
+		}
+		return result;
+	}
+
+	/**
+	 * Count the set pixels
+	 *
+	 * @return  the number of pixels
+	 */
+	public long count() {
+		long count = 0;
+		for (int n = 0; n < nSlices; n++)
+			for (int i = 0; i < words[n].length; i++) count += Long.bitCount(words[n][i]);
+		return count;
+	}
+
+	/**
+	 * Count the pixels set in only one of the masks
+	 *
+	 * @param  other  the other mask
+	 * @return        the number of pixels, or -1 if the masks do not match
+	 */
+	public long countDifferences(BitMask other) {
+		if (other.width != width || other.height != height || other.nSlices != nSlices || other.foreground != foreground) return -1;
+		long count = 0;
+		for (int n = 0; n < nSlices; n++)
+			for (int i = 0; i < words[n].length; i++) count += Long.bitCount(words[n][i] ^ other.words[n][i]);
+		return count;
+	}
+
+	/**
+	 * Find the particles of a slice the way ParticleAnalyzer does with INCLUDE_HOLES.
+	 * <p>
+	 * The runs of set and unset bits are read off the words row by row and joined
+	 * into 8-connected particles and 4-connected background regions.
+	 * A background region that does not reach the image border is a hole of
+	 * the particle right above its first pixel; a particle inside a hole belongs to
+	 * the particle around it, so that only the outermost particles are reported,
+	 * each with the pixels of its holes and everything inside them.
+	 *
+	 * @param  slice  slice number (0-based)
+	 * @return        the outermost particles in the order of their first pixel
+	 */
+	public ArrayList<Particle> particles(int slice) {
+		long[] bits = words[slice];
+		Runs runs = new Runs();
+		int[] rowFirst = new int[height + 1];  // index of the first run of each row
+		for (int y = 0; y < height; y++) {
+			rowFirst[y] = runs.n;
+			int base = y * wordsPerRow;
+			for (int x = 0; x < width; ) {
+				int s = nextBit(bits, base, x, true);
+				if (s > x) runs.add(x, s, y, false);
+				if (s >= width) break;
+				x = nextBit(bits, base, s, false);
+				runs.add(s, x, y, true);
+			}
+			if (y > 0) runs.join(rowFirst[y - 1], rowFirst[y], runs.n);
+		}
+		rowFirst[height] = runs.n;
+
+		int n = runs.n;
+		int[] root     = runs.parent;
+		int[] total    = new int[n];     // pixels of the region with everything inside it
+		long[] xSum    = new long[n];
+		long[] ySum    = new long[n];
+		int[] minX     = new int[n];
+		int[] maxX     = new int[n];
+		int[] maxY     = new int[n];
+		boolean[] outside = new boolean[n];
+		Arrays.fill(minX, width);
+		for (int i = 0; i < n; i++) {
+			int r = runs.find(i);
+			root[i] = r;
+			int length = runs.end[i] - runs.start[i];
+			total[r] += length;
+			xSum[r]  += (long)(runs.start[i] + runs.end[i] - 1) * length / 2;
+			ySum[r]  += (long)runs.row[i] * length;
+			if (runs.fg[i]) {
+				minX[r] = Math.min(minX[r], runs.start[i]);
+				maxX[r] = Math.max(maxX[r], runs.end[i] - 1);
+				maxY[r] = runs.row[i];
+			}
+			else if (runs.row[i] == 0 || runs.row[i] == height - 1 || runs.start[i] == 0 || runs.end[i] == width) {
+				outside[r] = true;
+			}
+		}
+
+		// the region containing each particle or hole: the one right above its first pixel
+		int[] up = new int[n];
+		for (int r = 0; r < n; r++) {
+			up[r] = -1;
+			if (root[r] != r || outside[r] || runs.row[r] == 0) continue;
+			int above = root[runAt(runs, rowFirst, runs.row[r] - 1, runs.start[r])];
+			if (!outside[above]) up[r] = above;
+		}
+		// the regions inside another one always start later
+		for (int r = n - 1; r >= 0; r--) {
+			if (up[r] < 0) continue;
+			total[up[r]] += total[r];
+			xSum [up[r]] += xSum[r];
+			ySum [up[r]] += ySum[r];
+		}
+
+		ArrayList<Particle> particles = new ArrayList<Particle>();
+		for (int r = 0; r < n; r++) {
+			if (root[r] != r || !runs.fg[r] || up[r] >= 0) continue;
+			Particle p = new Particle();
+			p.pixelCount = total[r];
+			p.xSum       = xSum[r];
+			p.ySum       = ySum[r];
+			p.x          = minX[r];
+			p.y          = runs.row[r];
+			p.width      = maxX[r] - minX[r] + 1;
+			p.height     = maxY[r] - runs.row[r] + 1;
+			particles.add(p);
+		}
+		return particles;
+	}
+
+	/**
+	 * Find the run containing pixel x of the row
+	 */
+	private static int runAt(Runs runs, int[] rowFirst, int y, int x) {
+		int lo = rowFirst[y], hi = rowFirst[y + 1] - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (runs.start[mid] <= x) lo = mid;
+			else                      hi = mid - 1;
+		}
+		return lo;
+	}
+
+	/**
+	 * Find the next set (or unset) bit of the row, scanning whole words
+	 *
+	 * @return  its x, or width if there is none
+	 */
+	private int nextBit(long[] bits, int base, int x, boolean set) {
+		int i = x >>> 6;
+		long w = (set ? bits[base + i] : ~bits[base + i]) & (-1L << x);
+		while (w == 0) {
+			if (++i == wordsPerRow) return width;
+			w = set ? bits[base + i] : ~bits[base + i];
+		}
+		return Math.min(width, (i << 6) + Long.numberOfTrailingZeros(w));
+	}
+
+	/**
+	 * The runs of a slice with a union-find over them.
+	 * The root of a region is always its first run
+	 */
+	private static class Runs {
+		int n = 0;
+		int[] start = new int[1024], end = new int[1024], row = new int[1024], parent = new int[1024];
+		boolean[] fg = new boolean[1024];
+
+		void add(int s, int e, int y, boolean isFg) {
+			if (n == start.length) {
+				int size = 2 * n;
+				start  = Arrays.copyOf(start,  size);
+				end    = Arrays.copyOf(end,    size);
+				row    = Arrays.copyOf(row,    size);
+				parent = Arrays.copyOf(parent, size);
+				fg     = Arrays.copyOf(fg,     size);
+			}
+			start[n] = s; end[n] = e; row[n] = y; fg[n] = isFg; parent[n] = n;
+			n++;
+		}
+
+		/**
+		 * Join the runs of a row with those of the previous row:
+		 * particles are 8-connected, the background is 4-connected
+		 */
+		void join(int prevFirst, int first, int last) {
+			int j = prevFirst;
+			for (int i = first; i < last; i++) {
+				int lo = fg[i] ? start[i] - 1 : start[i];
+				int hi = fg[i] ? end[i] + 1   : end[i];
+				while (j < first && end[j] <= lo) j++;
+				for (int k = j; k < first && start[k] < hi; k++) {
+					if (fg[k] == fg[i]) union(i, k);
+				}
+			}
+		}
+
+		int find(int i) {
+			while (parent[i] != i) {
+				parent[i] = parent[parent[i]];
+				i = parent[i];
+			}
+			return i;
+		}
+
+		void union(int a, int b) {
+			int ra = find(a), rb = find(b);
+			if      (ra < rb) parent[rb] = ra;
+			else if (rb < ra) parent[ra] = rb;
+		}
+	}
+
+	/**
+	 * A get for the image size
+	 *
+	 * @return  width
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * A get for the image size
+	 *
+	 * @return  height
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * A get for the number of slices
+	 *
+	 * @return  number of slices
+	 */
+	public int getSize() {
+		return nSlices;
+	}
+
+	/**
+	 * A get for the calibration
+	 *
+	 * @return  calibration of the image
+	 */
+	public Calibration getCalibration() {
+		return cal;
+	}
+
+	/**
+	 * A get for the foreground
+	 *
+	 * @return  value of the particle pixels in the 8-bit image
+	 */
+	public int getForeground() {
+		return foreground;
+	}
+
+	/**
+	 * A get for the title
+	 *
+	 * @return  title of the image
+	 */
+	public String getTitle() {
+		return title;
+	}
+
+	/**
+	 * A get for the memory used by the bits
+	 *
+	 * @return  size in bytes
+	 */
+	public long getBytes() {
+		return 8L * nSlices * wordsPerRow * height;
+	}
+}
@@ -0,0 +1,172 @@
+/*
+
+ Written by Andrey Rozenberg (jaera at yandex.com)
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+import ij.process.*;
+import java.util.Arrays;
+
+/**
+ * Bilinear downsizing with averaging, fused with the channel extraction.
+ * <p>
+ * Gives exactly the same pixels as ImageProcessor.resize(width, height, true)
+ * with bilinear interpolation, i.e. as "Size... constrain average interpolation=Bilinear",
+ * but reads the source row by row: neither a full-resolution copy of the channel
+ * nor the full-resolution float plane of ImageProcessor.resize() is allocated,
+ * only one row of the output width and the output plane itself.
+ * The kernel tables and the order of the float operations are those of ij.process.DownsizeTable
+ * and FloatProcessor.downsize(), hence the results are bit-identical.
+ */
+public class Downsizer {
+
+	/**
+	 * Check whether the fused path applies, i.e. whether the image is downsized in both directions
+	 *
+	 * @param  width      source width
+	 * @param  height     source height
+	 * @param  dstWidth   output width
+	 * @param  dstHeight  output height
+	 * @return            true if downsize() may be used
+	 */
+	public static boolean canDownsize(int width, int height, int dstWidth, int dstHeight) {
+		return dstWidth < width && dstHeight < height && dstWidth > 0 && dstHeight > 0;
+	}
+
+	/**
+	 * Downsize a single channel of the source plane into the output array
+	 *
+	 * @param ip         source plane (byte, short, float or RGB)
+	 * @param channel    RGB channel (1 = red, 2 = green, 3 = blue), ignored for other types
+	 * @param dstWidth   output width
+	 * @param dstHeight  output height
+	 * @param dst        output array: byte[] for 8-bit and RGB sources, short[] for 16-bit, float[] for 32-bit
+	 */
+	public static void downsize(ImageProcessor ip, int channel, int dstWidth, int dstHeight, Object dst) {
+		int width  = ip.getWidth();
+		int height = ip.getHeight();
+		Table tx   = new Table(width,  dstWidth);
+		Table ty   = new Table(height, dstHeight);
+		float[] out = new float[dstWidth * dstHeight];
+		float[] row = new float[dstWidth];
+		Object pixels = ip.getPixels();
+		int shift = 16 - 8 * (channel - 1);
+		for (int y = ty.srcStart; y <= ty.srcEnd; y++) {
+			// x direction: one source row into one row of the output width
+			Arrays.fill(row, 0f);
+			int offset = y * width;
+			int tp = 0;
+			for (int x = tx.srcStart; x <= tx.srcEnd; x++) {
+				float v;
+				if      (pixels instanceof byte [])  v = ((byte [])pixels)[offset + x] & 0xff;
+				else if (pixels instanceof short[])  v = ((short[])pixels)[offset + x] & 0xffff;
+				else if (pixels instanceof float[])  v = ((float[])pixels)[offset + x];
+				else                                 v = (((int[])pixels)[offset + x] >> shift) & 0xff;
+				for (int i = 0; i < tx.kernelSize; i++, tp++)
+					row[tx.indices[tp]] += v * tx.weights[tp];
+			}
+			// y direction: add the row to the output rows it contributes to
+			tp = (y - ty.srcStart) * ty.kernelSize;
+			for (int i = 0; i < ty.kernelSize; i++, tp++) {
+				float w = ty.weights[tp];
+				int dstOffset = ty.indices[tp] * dstWidth;
+				for (int x = 0; x < dstWidth; x++)
+					out[dstOffset + x] += row[x] * w;
+			}
+		}
+		// the same rounding as in ImageProcessor.setPixels(int, FloatProcessor)
+		int size = dstWidth * dstHeight;
+		if (dst instanceof float[]) {
+			System.arraycopy(out, 0, dst, 0, size);
+		}
+		else if (dst instanceof short[]) {
+			short[] dstPixels = (short[])dst;
+			for (int i = 0; i < size; i++) {
+				float value = out[i] + 0.5f;
+				if (value < 0f)     value = 0f;
+				if (value > 65535f) value = 65535f;
+				dstPixels[i] = (short)value;
+			}
+		}
+		else {
+			byte[] dstPixels = (byte[])dst;
+			for (int i = 0; i < size; i++) {
+				float value = out[i] + 0.5f;
+				if (value < 0f)   value = 0f;
+				if (value > 255f) value = 255f;
+				dstPixels[i] = (byte)value;
+			}
+		}
+	}
+
+	/**
+	 * Bilinear kernel table for 1-dimensional downsizing of the whole source range.
+	 * A copy of ij.process.DownsizeTable, whose constructor is not public
+	 */
+	private static class Table {
+		final int kernelSize = 2;
+		final int srcStart, srcEnd;
+		final int[] indices;
+		final float[] weights;
+		private final double scale;
+		private static final int UNUSED = -1;
+
+		Table(int srcSize, int dstSize) {
+			scale = srcSize / (double)dstSize;
+			int srcStartUncorr = (int)(Math.ceil(1e-8 + srcIndex(-0.5 * kernelSize)));
+			srcStart = srcStartUncorr < 0 ? 0 : srcStartUncorr;
+			int srcEndUncorr = (int)(Math.floor(1e-8 + srcIndex(dstSize - 1 + 0.5 * kernelSize)));
+			srcEnd = srcEndUncorr >= srcSize ? srcSize - 1 : srcEndUncorr;
+			int arraySize = (srcEnd - srcStart + 1) * kernelSize;
+			indices = new int[arraySize];
+			weights = new float[arraySize];
+			Arrays.fill(indices, UNUSED);
+			for (int dst = 0; dst < dstSize; dst++) {
+				double sum = 0;
+				int lowestS  = (int)(Math.ceil(1e-8 + srcIndex(dst - 0.5 * kernelSize)));
+				int highestS = (int)(Math.floor(-1e-8 + srcIndex(dst + 0.5 * kernelSize)));
+				for (int src = lowestS; src <= highestS; src++) {
+					// out-of-bounds pixels are replaced by the edge pixel
+					int s = src < 0 ? 0 : (src >= srcSize ? srcSize - 1 : src);
+					int p = (s - srcStart) * kernelSize;
+					while (indices[p] != UNUSED && indices[p] != dst) p++;
+					indices[p] = dst;
+					float weight = 1f - (float)Math.abs(dst - dstIndex(src));
+					sum += weight;
+					weights[p] += weight;
+				}
+				// normalize: the weights contributing to a destination pixel sum up to 1
+				int iStart = (lowestS - srcStart) * kernelSize;
+				if (iStart < 0) iStart = 0;
+				int iStop = (highestS - srcStart) * kernelSize + (kernelSize - 1);
+				if (iStop >= indices.length) iStop = indices.length - 1;
+				for (int i = iStart; i <= iStop; i++) {
+					if (indices[i] == dst) weights[i] = (float)(weights[i] / sum);
+				}
+			}
+			for (int i = 0; i < indices.length; i++) {
+				if (indices[i] == UNUSED) indices[i] = 0;
+			}
+		}
+
+		private double srcIndex(double dstIndex) {
+			return -0.5 + (dstIndex + 0.5) * scale;
+		}
+
+		private double dstIndex(int srcIndex) {
+			return (srcIndex + 0.5) / scale - 0.5;
+		}
+	}
+}
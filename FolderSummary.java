@@ -0,0 +1,197 @@
+/*
+
+ Written by Andrey Rozenberg (jaera at yandex.com)
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+import ij.measure.ResultsTable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Running summary of the per-image results of a folder.
+ * <p>
+ * For every results column the number of values, their mean and SD
+ * (Welford's algorithm) and their quantiles are kept. The quantiles come from a
+ * histogram with logarithmic bins, so they are exact within ACCURACY
+ * (relative) for any number of images. Summaries are merged exactly, so
+ * the summary of a folder is that of its own images merged with those of
+ * its subfolders, and no per-image values are kept.
+ */
+public class FolderSummary {
+	public static final double ACCURACY = 0.01;  // relative accuracy of the quantiles
+
+	private static final double GAMMA     = (1 + ACCURACY) / (1 - ACCURACY);  // ratio of the bin bounds
+	private static final double LOG_GAMMA = Math.log(GAMMA);
+
+	private String folder;                                                     // folder name
+	private int images;                                                        // number of images
+	private LinkedHashMap<String, Statistic> statistics = new LinkedHashMap<String, Statistic>();  // by column
+
+	/**
+	 * The statistics of a single column
+	 */
+	private static class Statistic {
+		long   n;                                              // number of values
+		double mean, m2;                                       // mean and sum of the squared deviations
+		long   zeros;                                          // number of values <= 0
+		TreeMap<Integer, Long> bins = new TreeMap<Integer, Long>();  // counts of the positive values by bin
+
+		void add(double value) {
+			n++;
+			double delta = value - mean;
+			mean += delta / n;
+			m2   += delta * (value - mean);
+			if (value <= 0) zeros++;
+			else            add(bins, (int)Math.ceil(Math.log(value) / LOG_GAMMA), 1);
+		}
+
+		void merge(Statistic other) {
+			if (other.n == 0) return;
+			long   total = n + other.n;
+			double delta = other.mean - mean;
+			mean  += delta * other.n / total;
+			m2    += other.m2 + delta * delta * n * other.n / total;
+			n      = total;
+			zeros += other.zeros;
+			for (Map.Entry<Integer, Long> bin : other.bins.entrySet()) add(bins, bin.getKey(), bin.getValue());
+		}
+
+		/**
+		 * The quantile, interpolated between the values of the neighbouring ranks
+		 * (as usual for the median of an even number of values)
+		 */
+		double quantile(double q) {
+			if (n == 0) return Double.NaN;
+			double position = q * (n - 1);
+			long   rank     = (long)Math.floor(position);
+			double fraction = position - rank;
+			double value    = valueAt(rank);
+			return fraction > 0 ? value + fraction * (valueAt(rank + 1) - value) : value;
+		}
+
+		/**
+		 * The value of the given rank (0-based), within ACCURACY
+		 */
+		private double valueAt(long rank) {
+			if (rank < zeros) return 0;
+			long count = zeros;
+			for (Map.Entry<Integer, Long> bin : bins.entrySet()) {
+				count += bin.getValue();
+				if (rank < count) return 2 * Math.pow(GAMMA, bin.getKey()) / (GAMMA + 1);  // the middle of the bin
+			}
+			return Double.NaN;
+		}
+
+		private static void add(TreeMap<Integer, Long> bins, int bin, long count) {
+			Long old = bins.get(bin);
+			bins.put(bin, old == null ? count : old + count);
+		}
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param folder  folder name
+	 */
+	public FolderSummary(String folder) {
+		this.folder = folder;
+	}
+
+	/**
+	 * A get for the folder name
+	 *
+	 * @return  the name
+	 */
+	public String getFolder() {
+		return folder;
+	}
+
+	/**
+	 * A get for the number of images
+	 *
+	 * @return  the number
+	 */
+	public int getImages() {
+		return images;
+	}
+
+	/**
+	 * Add the numeric values of a results row as a new image.
+	 * Missing values (NaN) are not counted
+	 *
+	 * @param table    the results table
+	 * @param row      the row
+	 * @param exclude  columns not to be summarized
+	 */
+	public void addImage(ResultsTable table, int row, String... exclude) {
+		images++;
+		columns:
+		for (int col = 0; col <= table.getLastColumn(); col++) {
+			if (!table.columnExists(col)) continue;
+			String heading = table.getColumnHeading(col);
+			for (int i = 0; i < exclude.length; i++) {
+				if (exclude[i].equals(heading)) continue columns;
+			}
+			double value = table.getValueAsDouble(col, row);
+			if (Double.isNaN(value)) continue;
+			Statistic statistic = statistics.get(heading);
+			if (statistic == null) {
+				statistic = new Statistic();
+				statistics.put(heading, statistic);
+			}
+			statistic.add(value);
+		}
+	}
+
+	/**
+	 * Add the images of another summary, e.g. of a subfolder
+	 *
+	 * @param other  the other summary
+	 */
+	public void merge(FolderSummary other) {
+		images += other.images;
+		for (Map.Entry<String, Statistic> entry : other.statistics.entrySet()) {
+			Statistic statistic = statistics.get(entry.getKey());
+			if (statistic == null) {
+				statistic = new Statistic();
+				statistics.put(entry.getKey(), statistic);
+			}
+			statistic.merge(entry.getValue());
+		}
+	}
+
+	/**
+	 * Write the summary as a new row of the table:
+	 * the folder, the number of images and for every column the mean, SD, median and quartiles
+	 *
+	 * @param table  the summary table
+	 */
+	public void addTo(ResultsTable table) {
+		int row = table.getCounter();
+		table.setValue("Folder", row, folder);
+		table.setValue("Images", row, images);
+		for (Map.Entry<String, Statistic> entry : statistics.entrySet()) {
+			String    column    = entry.getKey();
+			Statistic statistic = entry.getValue();
+			table.setValue(column + " mean",   row, statistic.n > 0 ? statistic.mean : Double.NaN);
+			table.setValue(column + " SD",     row, statistic.n > 1 ? Math.sqrt(statistic.m2 / (statistic.n - 1)) : Double.NaN);
+			table.setValue(column + " Q1",     row, statistic.quantile(0.25));
+			table.setValue(column + " median", row, statistic.quantile(0.5));
+			table.setValue(column + " Q3",     row, statistic.quantile(0.75));
+		}
+	}
+}
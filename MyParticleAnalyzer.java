@@ -16,15 +16,21 @@
 
 */
 
+import ij.*;
 import ij.process.*;
 import ij.gui.*;
 import ij.plugin.filter.*;
 import ij.measure.*;
+import java.util.Arrays;
 
 public class MyParticleAnalyzer extends ParticleAnalyzer {
 	private int myCount = 0;          // total number of particles
 	private double myTotalSize = 0;   // total area of all particles
 	private double mySumSqSize = 0;   // sum of squares of particle area (used for the SD)
+	private double myMinSize, myMaxSize;  // particle size range [px]
+	private double[] myX = new double[64], myY = new double[64];  // particle centroids (calibrated)
+	private boolean checked = false;  // whether analyze(BitMask) has been compared with analyze(ImagePlus)
+	private boolean useRuns = true;   // whether analyze(BitMask) may use its own labelling
 
 	/**
 	 * Constructor.
@@ -33,7 +39,91 @@ public class MyParticleAnalyzer extends ParticleAnalyzer {
 		super(  ParticleAnalyzer.EXCLUDE_EDGE_PARTICLES + 
 			ParticleAnalyzer.INCLUDE_HOLES +
 			ParticleAnalyzer.SHOW_NONE,
-			Measurements.AREA, null, minSize, maxSize, minCirc, maxCirc);
+			Measurements.AREA + Measurements.CENTROID, null, minSize, maxSize, minCirc, maxCirc);
+		this.myMinSize = minSize;
+		this.myMaxSize = maxSize;
+	}
+
+	/**
+	 * Analyze a bit-packed mask.
+	 * Gives the same results as analyze() of the 8-bit image, but labels
+	 * the particles by scanning the runs of the mask (see BitMask.particles()).
+	 * The first mask is analyzed both ways and the results are compared:
+	 * if they differ, the particle analyzer is used for this and all further masks
+	 *
+	 * @param mask  the mask (only its first slice is analyzed)
+	 */
+	public void analyze(BitMask mask) {
+		if (checked && !useRuns) {
+			analyzeImage(mask);
+			return;
+		}
+		int    count0 = this.myCount;
+		double total0 = this.myTotalSize;
+		double sumSq0 = this.mySumSqSize;
+		Calibration cal = mask.getCalibration();
+		double pw = cal != null ? cal.pixelWidth  : 1.0;
+		double ph = cal != null ? cal.pixelHeight : 1.0;
+		int width  = mask.getWidth();
+		int height = mask.getHeight();
+		for (BitMask.Particle p : mask.particles(0)) {
+			// EXCLUDE_EDGE_PARTICLES
+			if (p.x == 0 || p.y == 0 || p.x + p.width == width || p.y + p.height == height) continue;
+			if (p.pixelCount < this.myMinSize || p.pixelCount > this.myMaxSize) continue;
+			// as in ImageStatistics
+			double area = p.pixelCount * pw * ph;
+			double x = cal != null ? cal.getX((double)p.xSum / p.pixelCount + 0.5)         : (double)p.xSum / p.pixelCount + 0.5;
+			double y = cal != null ? cal.getY((double)p.ySum / p.pixelCount + 0.5, height) : (double)p.ySum / p.pixelCount + 0.5;
+			addParticle(area, x, y);
+		}
+		if (checked) return;
+		checked = true;
+		int    count = this.myCount;
+		double total = this.myTotalSize;
+		double sumSq = this.mySumSqSize;
+		double[] xs  = Arrays.copyOf(this.myX, count);
+		double[] ys  = Arrays.copyOf(this.myY, count);
+		this.myCount     = count0;
+		this.myTotalSize = total0;
+		this.mySumSqSize = sumSq0;
+		analyzeImage(mask);
+		useRuns = count == this.myCount && total == this.myTotalSize && sumSq == this.mySumSqSize &&
+			Arrays.equals(xs, Arrays.copyOf(this.myX, count)) && Arrays.equals(ys, Arrays.copyOf(this.myY, count));
+		if (!useRuns) IJ.log("SynapseCounter: the run-based labelling differs from the particle analyzer, using the particle analyzer instead");
+	}
+
+	/**
+	 * Skip the comparison of the labellings in analyze(BitMask),
+	 * e.g. if it was done by another instance with the same settings
+	 *
+	 * @param useRuns  whether the run-based labelling is to be used
+	 */
+	public void setUseRuns(boolean useRuns) {
+		this.checked = true;
+		this.useRuns = useRuns;
+	}
+
+	/**
+	 * A get for the outcome of the comparison of the labellings
+	 *
+	 * @returns  true if the run-based labelling is used (also if not compared yet)
+	 */
+	public boolean usesRuns() {
+		return this.useRuns;
+	}
+
+	/**
+	 * Analyze the 8-bit image restored from the mask.
+	 * The foreground is set as the threshold, so that the particle analyzer
+	 * does not guess it from the LUT and the "Black background" option
+	 *
+	 * @param mask  the mask
+	 */
+	private void analyzeImage(BitMask mask) {
+		ImagePlus imp = mask.toImagePlus(null);
+		imp.getProcessor().setThreshold(mask.getForeground(), mask.getForeground(), ImageProcessor.NO_LUT_UPDATE);
+		analyze(imp);
+		imp.close();
 	}
 
 	/**
@@ -51,9 +141,39 @@ public class MyParticleAnalyzer extends ParticleAnalyzer {
 	 * @param roi   not used
 	 */
 	protected void saveResults(ImageStatistics stats, Roi roi) {
+		addParticle(stats.area, stats.xCentroid, stats.yCentroid);
+	}
+
+	/**
+	 * Add a particle to the summaries
+	 *
+	 * @param area  particle area
+	 * @param x     centroid x
+	 * @param y     centroid y
+	 */
+	private void addParticle(double area, double x, double y) {
+		if (this.myCount == this.myX.length) {
+			this.myX = Arrays.copyOf(this.myX, 2 * this.myCount);
+			this.myY = Arrays.copyOf(this.myY, 2 * this.myCount);
+		}
+		this.myX[this.myCount] = x;
+		this.myY[this.myCount] = y;
 		this.myCount++;
-		this.myTotalSize += stats.area;
-		this.mySumSqSize += stats.area * stats.area;
+		this.myTotalSize += area;
+		this.mySumSqSize += area * area;
+	}
+
+	/**
+	 * A get for the particle centroids of the last analysis
+	 *
+	 * @returns  x, y and z (all 0) coordinates
+	 */
+	public double[][] getCentroids() {
+		return new double[][] {
+			Arrays.copyOf(this.myX, this.myCount),
+			Arrays.copyOf(this.myY, this.myCount),
+			new double[this.myCount]
+		};
 	}
 
 	/**
@@ -20,6 +20,7 @@ import Utilities.Counter3D;
 import Utilities.Object3D;
 import java.util.Vector;
 import ij.ImagePlus;
+import ij.measure.Calibration;
 
 public class MyParticleAnalyzer3D {
 	private int myCount = 0;          // total number of particles
@@ -28,6 +29,7 @@ public class MyParticleAnalyzer3D {
 
 	private int minSize = 0;       // min particle size
 	private int maxSize = 0;       // max particle size
+	private double[][] myCentroids = new double[3][0];  // particle centroids (calibrated)
 
 	/**
 	 * Constructor.
@@ -84,6 +86,27 @@ public class MyParticleAnalyzer3D {
 		return (this.myCount * this.mySumSqSize - this.myTotalSize * this.myTotalSize) / this.myCount / (this.myCount - 1);
 	}
 
+	/**
+	 * A get for the particle centroids of the last analysis
+	 *
+	 * @returns  x, y and z coordinates
+	 */
+	public double[][] getCentroids() {
+		return this.myCentroids;
+	}
+
+	/**
+	 * Analyze a bit-packed mask.
+	 * Counter3D needs an image, so the 8-bit stack is restored for the time of the analysis
+	 *
+	 * @param mask  the mask
+	 */
+	public void analyze(BitMask mask) {
+		ImagePlus img = mask.toImagePlus(null);
+		analyze(img);
+		img.close();
+	}
+
 	/**
 	 * The main analyze routine.
 	 * Analogous to analyze() from ParticleAnalyzer
@@ -93,10 +116,15 @@ public class MyParticleAnalyzer3D {
 		Vector<?> allObjects = (Vector<?>)myCounter.getObjectsList();
 
 		this.myCount = allObjects.size();
+		Calibration cal = img.getCalibration();
+		this.myCentroids = new double[3][this.myCount];
 		for (int i = 0; i < this.myCount; i++) {
 			Object3D currObj = (Object3D)allObjects.get(i);
 			this.myTotalSize += currObj.size;
 			this.mySumSqSize += currObj.size * currObj.size;
+			this.myCentroids[0][i] = currObj.centroid[0] * cal.pixelWidth;
+			this.myCentroids[1][i] = currObj.centroid[1] * cal.pixelHeight;
+			this.myCentroids[2][i] = currObj.centroid[2] * cal.pixelDepth;
 		}
 	}
 
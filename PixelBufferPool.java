@@ -0,0 +1,143 @@
+/*
+
+ Written by Andrey Rozenberg (jaera at yandex.com)
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * A pool of pixel arrays keyed by the dimensions and the bit depth.
+ * <p>
+ * The images of a batch run usually have the same size, so the arrays
+ * of the images that have been analyzed can be reused for the next ones
+ * instead of being left to the garbage collector.
+ */
+public class PixelBufferPool {
+	private HashMap<String, ArrayDeque<Object>> buffers = new HashMap<String, ArrayDeque<Object>>();
+	private long maxBytes;        // max. total size of the pooled arrays
+	private long bytes = 0;       // current total size of the pooled arrays
+
+	/**
+	 * Constructor.
+	 *
+	 * @param maxBytes  max. total size of the arrays kept in the pool
+	 */
+	public PixelBufferPool(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Get an array from the pool or allocate a new one.
+	 * The content of a pooled array is undefined
+	 *
+	 * @param  width     image width
+	 * @param  height    image height
+	 * @param  bitDepth  8, 16 or 32
+	 * @return           byte[], short[] or float[] array
+	 */
+	public synchronized Object get(int width, int height, int bitDepth) {
+		ArrayDeque<Object> queue = buffers.get(key(width, height, bitDepth));
+		if (queue != null && !queue.isEmpty()) {
+			Object pixels = queue.pop();
+			bytes -= sizeOf(pixels);
+			return pixels;
+		}
+		switch (bitDepth) {
+			case 8:  return new byte [width * height];
+			case 16: return new short[width * height];
+			case 32: return new float[width * height];
+		}
+		throw new IllegalArgumentException("Unsupported bit depth: " + bitDepth);
+	}
+
+	/**
+	 * Return an array to the pool.
+	 * The array is dropped if the pool is full or if it is not of a supported type
+	 *
+	 * @param pixels  the array
+	 * @param width   image width
+	 * @param height  image height
+	 */
+	public synchronized void put(Object pixels, int width, int height) {
+		int bitDepth = bitDepth(pixels);
+		if (bitDepth == 0) return;
+		long size = sizeOf(pixels);
+		if (bytes + size > maxBytes) return;
+		String myKey = key(width, height, bitDepth);
+		ArrayDeque<Object> queue = buffers.get(myKey);
+		if (queue == null) {
+			queue = new ArrayDeque<Object>();
+			buffers.put(myKey, queue);
+		}
+		queue.push(pixels);
+		bytes += size;
+	}
+
+	/**
+	 * Return all arrays of the image to the pool and close the image.
+	 * The image must not be used afterwards
+	 *
+	 * @param imp  the image (may be null)
+	 */
+	public void release(ImagePlus imp) {
+		if (imp == null) return;
+		ImageStack stack = imp.getStack();
+		Object[] arrays = stack.getImageArray();
+		int n = stack.getSize();
+		for (int i = 0; arrays != null && i < n; i++) {
+			if (arrays[i] != null) put(arrays[i], stack.getWidth(), stack.getHeight());
+		}
+		imp.close();
+	}
+
+	/**
+	 * Drop all pooled arrays
+	 */
+	public synchronized void clear() {
+		buffers.clear();
+		bytes = 0;
+	}
+
+	/**
+	 * A get for the total size of the pooled arrays
+	 *
+	 * @return  size in bytes
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	private static String key(int width, int height, int bitDepth) {
+		return width + "x" + height + "x" + bitDepth;
+	}
+
+	private static int bitDepth(Object pixels) {
+		if (pixels instanceof byte [])  return 8;
+		if (pixels instanceof short[])  return 16;
+		if (pixels instanceof float[])  return 32;
+		return 0;
+	}
+
+	private static long sizeOf(Object pixels) {
+		if (pixels instanceof byte [])  return ((byte [])pixels).length;
+		if (pixels instanceof short[])  return ((short[])pixels).length * 2L;
+		if (pixels instanceof float[])  return ((float[])pixels).length * 4L;
+		return 0;
+	}
+}
@@ -0,0 +1,312 @@
+/*
+
+ Written by Andrey Rozenberg (jaera at yandex.com)
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+import ij.*;
+import ij.process.*;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Hand-written kernels for the purely per-pixel stages of the pipeline:
+ * 3x3 smoothing, subtraction of the mean and binarization at the threshold.
+ * <p>
+ * This class holds the scalar loops, VectorPixelKernels overrides them with
+ * the Java Vector API (jdk.incubator.vector) when the JVM provides it.
+ * The kernels reproduce the arithmetic of the ImageJ commands they replace.
+ * The first time a kernel is used for a given bit depth, the ImageProcessor
+ * method behind the command is run on a copy of the pixels and the results are
+ * compared: if they are not bit-identical, the ImageJ result is kept and the
+ * kernel is not used anymore.
+ * Only 8- and 16-bit images are handled, for other types the methods return
+ * false and the caller should fall back to the ImageJ command.
+ */
+public class PixelKernels {
+
+	public static final String[] MODES = {"auto", "vector", "scalar", "imagej"};  // values of the "synapsecounter.kernels" pref
+
+	private static final int SMOOTH = 0, SUBTRACT = 1;
+	private static final String[] COMMANDS = {"Smooth", "Subtract..."};
+
+	private HashMap<String, Boolean> checked = new HashMap<String, Boolean>();  // true if verified, false if disabled
+
+	/**
+	 * Create the kernels for the given mode.
+	 * "auto" and "vector" use the Vector API if available and the scalar loops otherwise,
+	 * "scalar" always uses the scalar loops, "imagej" disables the kernels (returns null)
+	 *
+	 * @param  mode  one of MODES
+	 * @return       the kernels or null
+	 */
+	public static PixelKernels create(String mode) {
+		if (mode.equals("imagej")) return null;
+		if (!mode.equals("scalar")) {
+			try {
+				return (PixelKernels)Class.forName("VectorPixelKernels").getDeclaredConstructor().newInstance();
+			}
+			catch (Throwable e) {
+				// expected in "auto" mode if the class is not compiled or the JVM runs without jdk.incubator.vector
+				boolean missing = e instanceof ClassNotFoundException || e instanceof NoClassDefFoundError;
+				Throwable cause = e instanceof ExceptionInInitializerError && e.getCause() != null ? e.getCause() : e;
+				if (mode.equals("vector") || !missing)
+					IJ.log("SynapseCounter: the vector kernels cannot be used (" + cause + "), using scalar kernels");
+			}
+		}
+		return new PixelKernels();
+	}
+
+	/**
+	 * A get for the name of the implementation
+	 *
+	 * @return  the name
+	 */
+	public String getName() {
+		return "scalar";
+	}
+
+	/**
+	 * The equivalent of IJ.run(channel, "Smooth", is3d ? "stack" : "")
+	 *
+	 * @param  channel  the channel
+	 * @param  is3d     process all slices or only the current one
+	 * @return          false if not supported for this image
+	 */
+	public boolean smooth(ImagePlus channel, boolean is3d) {
+		if (channel.getWidth() < 2) return false;
+		return apply(SMOOTH, channel, 0, is3d);
+	}
+
+	/**
+	 * The equivalent of IJ.run(channel, "Subtract...", "value=" + value + (is3d ? " stack" : ""))
+	 *
+	 * @param  channel  the channel
+	 * @param  value    the value to subtract
+	 * @param  is3d     process all slices or only the current one
+	 * @return          false if not supported for this image
+	 */
+	public boolean subtract(ImagePlus channel, double value, boolean is3d) {
+		return apply(SUBTRACT, channel, value, is3d);
+	}
+
+	/**
+	 * Binarization of a slice: the pixels above the threshold become 255, the others 0.
+	 * The equivalent of mask[i] = ip.getf(i) > threshold ? 255 : 0, which is what
+	 * the kernel is compared with on first use
+	 *
+	 * @param  ip         the slice
+	 * @param  threshold  the threshold
+	 * @param  mask       output pixels, may be the pixels of ip if it is 8-bit
+	 * @return            false if not supported for this slice
+	 */
+	public boolean threshold(ImageProcessor ip, double threshold, byte[] mask) {
+		int bitDepth = ip.getBitDepth();
+		if (bitDepth != 8 && bitDepth != 16) return false;
+		if (ip.isSigned16Bit() || Double.isNaN(threshold)) return false;
+		String key = "Threshold" + bitDepth;
+		Boolean state = getChecked(key);
+		if (state == Boolean.FALSE) return false;
+
+		byte[] reference = null;
+		if (state == null) {
+			reference = new byte[mask.length];
+			for (int i = 0; i < reference.length; i++)
+				reference[i] = ip.getf(i) > threshold ? (byte)255 : (byte)0;
+		}
+		// the pixels are integers, so they are above the threshold iff they are above its floor
+		int intThreshold = (int)Math.max(-1, Math.min(65535, Math.floor(threshold)));
+		if (bitDepth == 8) threshold((byte []) ip.getPixels(), intThreshold, mask);
+		else               threshold((short[]) ip.getPixels(), intThreshold, mask);
+		if (reference != null) verify(key, "Threshold", new Object[] { mask }, new Object[] { reference });
+		return true;
+	}
+
+	/**
+	 * Run a kernel on the current slice or all slices of the channel,
+	 * verifying it against the ImageJ command if not done yet
+	 */
+	private boolean apply(int op, ImagePlus channel, double value, boolean is3d) {
+		int bitDepth = channel.getBitDepth();
+		if (bitDepth != 8 && bitDepth != 16) return false;
+		if (channel.getProcessor().isSigned16Bit()) return false;
+		String key = COMMANDS[op] + bitDepth;
+		Boolean state = getChecked(key);
+		if (state == Boolean.FALSE) return false;
+
+		int width  = channel.getWidth();
+		int height = channel.getHeight();
+		ImageStack stack = channel.getStack();
+		int first = is3d ? 1 : channel.getCurrentSlice();
+		int last  = is3d ? stack.getSize() : first;
+		int intValue = -(int)(-value);  // ImageProcessor.subtract() adds (int)(-value)
+
+		Object[] mine   = new Object[last - first + 1];
+		Object[] theirs = state == null ? new Object[last - first + 1] : null;
+		for (int n = first; n <= last; n++) {
+			Object pixels = stack.getPixels(n);
+			mine[n - first] = pixels;
+			if (theirs != null) {
+				// the reference: what the "Smooth" and "Subtract..." commands call for each slice
+				ImageProcessor reference = stack.getProcessor(n).duplicate();
+				if (op == SMOOTH) reference.smooth();
+				else              reference.subtract(value);
+				theirs[n - first] = reference.getPixels();
+			}
+			switch (op) {
+				case SMOOTH:
+					if (bitDepth == 8) smooth(((byte []) pixels).clone(), (byte []) pixels, width, height);
+					else               smooth(((short[]) pixels).clone(), (short[]) pixels, width, height);
+					break;
+				case SUBTRACT:
+					if (bitDepth == 8) subtract((byte []) pixels, intValue);
+					else               subtract((short[]) pixels, intValue);
+					break;
+			}
+		}
+		if (theirs != null) verify(key, COMMANDS[op], mine, theirs);
+		return true;
+	}
+
+	/**
+	 * Compare the kernel output with the ImageJ output.
+	 * On mismatch the ImageJ output is copied over and the kernel is disabled
+	 *
+	 * @param key     kernel key
+	 * @param name    name for the log
+	 * @param mine    the kernel output
+	 * @param theirs  the ImageJ output
+	 */
+	private void verify(String key, String name, Object[] mine, Object[] theirs) {
+		boolean same = true;
+		for (int i = 0; i < mine.length && same; i++) {
+			if      (mine[i] instanceof byte [])  same = Arrays.equals((byte []) mine[i], (byte []) theirs[i]);
+			else if (mine[i] instanceof short[])  same = Arrays.equals((short[]) mine[i], (short[]) theirs[i]);
+			else                                  same = false;
+		}
+		if (!same) {
+			for (int i = 0; i < mine.length; i++)
+				System.arraycopy(theirs[i], 0, mine[i], 0, java.lang.reflect.Array.getLength(mine[i]));
+			IJ.log("SynapseCounter: " + getName() + " kernel for " + name + " differs from ImageJ, using ImageJ instead");
+		}
+		setChecked(key, same);
+	}
+
+	private synchronized Boolean getChecked(String key) {
+		return checked.get(key);
+	}
+
+	private synchronized void setChecked(String key, boolean state) {
+		checked.put(key, state);
+	}
+
+	// the kernels themselves
+
+	/**
+	 * 3x3 mean with edge pixels replicated, rounded as in ImageProcessor.filter(BLUR_MORE)
+	 *
+	 * @param src     source pixels
+	 * @param dst     output pixels (must not be src)
+	 * @param width   image width
+	 * @param height  image height
+	 */
+	protected void smooth(byte[] src, byte[] dst, int width, int height) {
+		int[] colSum = new int[width];
+		for (int y = 0; y < height; y++) {
+			int up   = (y > 0 ? y - 1 : 0) * width;
+			int mid  = y * width;
+			int down = (y < height - 1 ? y + 1 : y) * width;
+			for (int x = 0; x < width; x++)
+				colSum[x] = (src[up + x] & 0xff) + (src[mid + x] & 0xff) + (src[down + x] & 0xff);
+			dst[mid] = (byte)((2 * colSum[0] + colSum[1] + 4) / 9);
+			for (int x = 1; x < width - 1; x++)
+				dst[mid + x] = (byte)((colSum[x - 1] + colSum[x] + colSum[x + 1] + 4) / 9);
+			dst[mid + width - 1] = (byte)((colSum[width - 2] + 2 * colSum[width - 1] + 4) / 9);
+		}
+	}
+
+	/**
+	 * 3x3 mean with edge pixels replicated, rounded as in ImageProcessor.filter(BLUR_MORE)
+	 *
+	 * @param src     source pixels
+	 * @param dst     output pixels (must not be src)
+	 * @param width   image width
+	 * @param height  image height
+	 */
+	protected void smooth(short[] src, short[] dst, int width, int height) {
+		int[] colSum = new int[width];
+		for (int y = 0; y < height; y++) {
+			int up   = (y > 0 ? y - 1 : 0) * width;
+			int mid  = y * width;
+			int down = (y < height - 1 ? y + 1 : y) * width;
+			for (int x = 0; x < width; x++)
+				colSum[x] = (src[up + x] & 0xffff) + (src[mid + x] & 0xffff) + (src[down + x] & 0xffff);
+			dst[mid] = (short)((2 * colSum[0] + colSum[1] + 4) / 9);
+			for (int x = 1; x < width - 1; x++)
+				dst[mid + x] = (short)((colSum[x - 1] + colSum[x] + colSum[x + 1] + 4) / 9);
+			dst[mid + width - 1] = (short)((colSum[width - 2] + 2 * colSum[width - 1] + 4) / 9);
+		}
+	}
+
+	/**
+	 * Subtract an integer value, clamping at 0
+	 *
+	 * @param pixels  the pixels
+	 * @param value   the value (>= 0)
+	 */
+	protected void subtract(byte[] pixels, int value) {
+		for (int i = 0; i < pixels.length; i++) {
+			int v = (pixels[i] & 0xff) - value;
+			pixels[i] = (byte)(v < 0 ? 0 : (v > 255 ? 255 : v));
+		}
+	}
+
+	/**
+	 * Subtract an integer value, clamping at 0
+	 *
+	 * @param pixels  the pixels
+	 * @param value   the value (>= 0)
+	 */
+	protected void subtract(short[] pixels, int value) {
+		for (int i = 0; i < pixels.length; i++) {
+			int v = (pixels[i] & 0xffff) - value;
+			pixels[i] = (short)(v < 0 ? 0 : (v > 65535 ? 65535 : v));
+		}
+	}
+
+	/**
+	 * Binarization: 255 for the pixels above the threshold, 0 for the others
+	 *
+	 * @param pixels     the pixels
+	 * @param threshold  the threshold (-1 to 65535)
+	 * @param mask       output pixels, may be pixels
+	 */
+	protected void threshold(byte[] pixels, int threshold, byte[] mask) {
+		for (int i = 0; i < pixels.length; i++)
+			mask[i] = (pixels[i] & 0xff) > threshold ? (byte)255 : (byte)0;
+	}
+
+	/**
+	 * Binarization: 255 for the pixels above the threshold, 0 for the others
+	 *
+	 * @param pixels     the pixels
+	 * @param threshold  the threshold (-1 to 65535)
+	 * @param mask       output pixels
+	 */
+	protected void threshold(short[] pixels, int threshold, byte[] mask) {
+		for (int i = 0; i < pixels.length; i++)
+			mask[i] = (pixels[i] & 0xffff) > threshold ? (byte)255 : (byte)0;
+	}
+}
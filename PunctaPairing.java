@@ -0,0 +1,232 @@
+/*
+
+ Written by Andrey Rozenberg (jaera at yandex.com)
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+import java.util.Arrays;
+
+/**
+ * Distance-based pairing of pre- and postsynaptic puncta.
+ * <p>
+ * A pre- and a postsynaptic punctum form a pair if each is the nearest neighbour
+ * of the other and their centroids are not farther apart than the max. distance.
+ * The centroids are calibrated, so anisotropic voxels are taken into account.
+ * The nearest neighbours are looked up in uniform grids with cells of (at least)
+ * the max. distance: only the 3x3 (3x3x3 in 3D) cells around a punctum need to be
+ * searched. The cells are kept as sorted keys rather than as an array of cells,
+ * so the memory is linear in the number of puncta however sparse they are
+ * and the pairing takes O(n log n) time.
+ */
+public class PunctaPairing {
+	private double[] distances;   // distances between the paired centroids, sorted
+
+	/**
+	 * Constructor. Does the pairing
+	 *
+	 * @param pre      x, y and z coordinates of the presynaptic centroids
+	 * @param pos      x, y and z coordinates of the postsynaptic centroids
+	 * @param maxDist  max. distance between the centroids of a pair
+	 */
+	public PunctaPairing(double[][] pre, double[][] pos, double maxDist) {
+		int nPre = pre[0].length;
+		int nPos = pos[0].length;
+		Grid preGrid = new Grid(pre, maxDist);
+		Grid posGrid = new Grid(pos, maxDist);
+		// the queries go in the order of the cells, so that neighbouring queries look at the same cells
+		int[] nearestPre = new int[nPos];
+		for (int k = 0; k < nPos; k++)
+			nearestPre[posGrid.index[k]] = preGrid.nearest(posGrid.xs[k], posGrid.ys[k], posGrid.zs[k], maxDist);
+		double[] myDistances = new double[Math.min(nPre, nPos)];
+		int count = 0;
+		for (int k = 0; k < nPre; k++) {
+			int i = preGrid.index[k];
+			int j = posGrid.nearest(preGrid.xs[k], preGrid.ys[k], preGrid.zs[k], maxDist);
+			if (j < 0 || nearestPre[j] != i) continue;
+			myDistances[count++] = distance(pre, i, pos, j);
+		}
+		distances = Arrays.copyOf(myDistances, count);
+		Arrays.sort(distances);
+	}
+
+	/**
+	 * A get for the number of pairs
+	 *
+	 * @return  number of pairs
+	 */
+	public int getCount() {
+		return distances.length;
+	}
+
+	/**
+	 * Calculate the mean distance within the pairs
+	 *
+	 * @return  mean distance
+	 */
+	public double getDistanceMean() {
+		if (distances.length == 0) return Double.NaN;
+		double sum = 0;
+		for (int i = 0; i < distances.length; i++) sum += distances[i];
+		return sum / distances.length;
+	}
+
+	/**
+	 * Calculate the SD of the distances within the pairs
+	 *
+	 * @return  SD
+	 */
+	public double getDistanceSD() {
+		if (distances.length < 2) return Double.NaN;
+		double mean = getDistanceMean();
+		double sum = 0;
+		for (int i = 0; i < distances.length; i++) sum += (distances[i] - mean) * (distances[i] - mean);
+		return Math.sqrt(sum / (distances.length - 1));
+	}
+
+	/**
+	 * Calculate the median distance within the pairs
+	 *
+	 * @return  median
+	 */
+	public double getDistanceMedian() {
+		int n = distances.length;
+		if (n == 0) return Double.NaN;
+		return n % 2 == 1 ? distances[n / 2] : (distances[n / 2 - 1] + distances[n / 2]) / 2;
+	}
+
+	private static double distance(double[][] a, int i, double[][] b, int j) {
+		double dx = a[0][i] - b[0][j];
+		double dy = a[1][i] - b[1][j];
+		double dz = a[2][i] - b[2][j];
+		return Math.sqrt(dx * dx + dy * dy + dz * dz);
+	}
+
+	/**
+	 * A uniform grid over a set of points.
+	 * The points are sorted by their cell keys, and their coordinates are
+	 * copied in that order, so that the points of a cell are adjacent in memory
+	 */
+	private static class Grid {
+		private double[] origin = new double[3];
+		private int[] maxCell   = new int[3];
+		private double cell;
+		private int indexBits, axisBits;
+		private long[] keys;                 // cell keys, sorted
+		private int[] index;                 // index of the point
+		private double[] xs, ys, zs;         // coordinates of the point
+
+		Grid(double[][] points, double maxDist) {
+			int n = points[0].length;
+			indexBits = Math.max(1, 64 - Long.numberOfLeadingZeros(n));
+			axisBits  = (63 - indexBits) / 3;
+			int maxCells = (1 << axisBits) - 1;
+			double range = 0;
+			for (int d = 0; d < 3; d++) {
+				double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+				for (int i = 0; i < n; i++) {
+					min = Math.min(min, points[d][i]);
+					max = Math.max(max, points[d][i]);
+				}
+				origin[d] = n > 0 ? min : 0;
+				range = Math.max(range, n > 0 ? max - min : 0);
+			}
+			// larger cells if there would be too many of them for the key
+			cell = Math.max(maxDist, range / (maxCells - 1));
+			if (!(cell > 0)) cell = 1;
+			for (int d = 0; d < 3; d++) maxCell[d] = -1;
+			// sort the points by the cell: key in the high bits, index in the low bits
+			long[] entries = new long[n];
+			for (int i = 0; i < n; i++) {
+				int[] c = cellOf(points[0][i], points[1][i], points[2][i]);
+				for (int d = 0; d < 3; d++) maxCell[d] = Math.max(maxCell[d], c[d]);
+				entries[i] = (key(c[0], c[1], c[2]) << indexBits) | i;
+			}
+			Arrays.sort(entries);
+			keys  = new long[n];
+			index = new int[n];
+			xs    = new double[n];
+			ys    = new double[n];
+			zs    = new double[n];
+			for (int k = 0; k < n; k++) {
+				int i = (int)(entries[k] & ((1L << indexBits) - 1));
+				keys [k] = entries[k] >>> indexBits;
+				index[k] = i;
+				xs[k] = points[0][i];
+				ys[k] = points[1][i];
+				zs[k] = points[2][i];
+			}
+		}
+
+		private int[] cellOf(double x, double y, double z) {
+			return new int[] { cellOf(x, 0), cellOf(y, 1), cellOf(z, 2) };
+		}
+
+		private int cellOf(double v, int d) {
+			// points of the other set may lie outside of the grid
+			return (int)Math.max(-2, Math.min(1 << axisBits, Math.floor((v - origin[d]) / cell)));
+		}
+
+		/**
+		 * The key of a cell: x in the lowest bits, so that neighbouring cells along x are adjacent
+		 */
+		private long key(int cx, int cy, int cz) {
+			return ((((long)cz << axisBits) | cy) << axisBits) | cx;
+		}
+
+		/**
+		 * Find the nearest point within the distance; of equally near ones the first
+		 *
+		 * @return  its index or -1
+		 */
+		int nearest(double x, double y, double z, double maxDist) {
+			int[] c = cellOf(x, y, z);
+			int best = -1;
+			double bestD2 = maxDist * maxDist;
+			int fromX = Math.max(0, c[0] - 1);
+			int toX   = Math.min(maxCell[0], c[0] + 1);
+			if (fromX > toX) return -1;
+			for (int cz = Math.max(0, c[2] - 1); cz <= Math.min(maxCell[2], c[2] + 1); cz++) {
+				for (int cy = Math.max(0, c[1] - 1); cy <= Math.min(maxCell[1], c[1] + 1); cy++) {
+					// the three cells along x are one range of keys
+					long lastKey = key(toX, cy, cz);
+					int k = firstAtLeast(key(fromX, cy, cz));
+					for (; k < keys.length && keys[k] <= lastKey; k++) {
+						int i = index[k];
+						double dx = xs[k] - x, dy = ys[k] - y, dz = zs[k] - z;
+						double d2 = dx * dx + dy * dy + dz * dz;
+						if (d2 < bestD2 || (d2 == bestD2 && (best < 0 || i < best))) {
+							best   = i;
+							bestD2 = d2;
+						}
+					}
+				}
+			}
+			return best;
+		}
+
+		/**
+		 * Binary search for the first point with a key not less than the given one
+		 */
+		private int firstAtLeast(long key) {
+			int lo = 0, hi = keys.length;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (keys[mid] < key) lo = mid + 1;
+				else                 hi = mid;
+			}
+			return lo;
+		}
+	}
+}
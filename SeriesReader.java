@@ -0,0 +1,109 @@
+/*
+
+ Written by Andrey Rozenberg (jaera at yandex.com)
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+import ij.*;
+
+/**
+ * Series-wise reading of container files that hold several images
+ * (series, positions or fields of view), e.g. multi-position LIF, CZI or ND2 files.
+ * <p>
+ * The series are decoded one by one and only the requested channels of them,
+ * the file is never loaded as a whole. The reading itself is done by
+ * BioFormatsSeriesReader, which needs Bio-Formats (shipped with Fiji):
+ * if it cannot be loaded, open() returns null and the files are to be
+ * opened with the Opener as before.
+ */
+public abstract class SeriesReader {
+
+	private static boolean available = true;  // false once BioFormatsSeriesReader failed to load
+
+	/**
+	 * Open a container file.
+	 * Only the metadata are read at this point
+	 *
+	 * @param  file  the file
+	 * @return       the reader or null if Bio-Formats is not available, cannot read the file or the file holds a single series
+	 */
+	public static SeriesReader open(String file) {
+		if (!available) return null;
+		SeriesReader reader;
+		try {
+			reader = (SeriesReader)Class.forName("BioFormatsSeriesReader").getDeclaredConstructor().newInstance();
+		}
+		catch (Throwable e) {  // class not compiled or Bio-Formats not installed
+			available = false;
+			return null;
+		}
+		if (!reader.setId(file)) return null;
+		if (reader.getSeriesCount() < 2) {
+			reader.close();
+			return null;
+		}
+		return reader;
+	}
+
+	/**
+	 * Read the metadata of the file
+	 *
+	 * @param  file  the file
+	 * @return       false if the file cannot be read
+	 */
+	protected abstract boolean setId(String file);
+
+	/**
+	 * A get for the number of series
+	 *
+	 * @return  the number of series
+	 */
+	public abstract int getSeriesCount();
+
+	/**
+	 * A get for the number of channels of a series (3 for RGB)
+	 *
+	 * @param  series  series index (from 0)
+	 * @return         the number of channels
+	 */
+	public abstract int getChannelCount(int series);
+
+	/**
+	 * Estimate the size of the decoded channels before opening them
+	 *
+	 * @param  series     series index (from 0)
+	 * @param  channels   channel indices (from 0)
+	 * @param  allPlanes  all slices and frames or only the first plane
+	 * @return            size in bytes
+	 */
+	public abstract long estimateBytes(int series, int[] channels, boolean allPlanes);
+
+	/**
+	 * Decode the given channels of a series.
+	 * RGB series give an RGB image, with the channels that have not been requested left black;
+	 * other series give an image with the requested channels only, in the given order
+	 *
+	 * @param  series     series index (from 0)
+	 * @param  channels   channel indices (from 0)
+	 * @param  allPlanes  all slices and frames or only the first plane
+	 * @return            the image or null on error
+	 */
+	public abstract ImagePlus openSeries(int series, int[] channels, boolean allPlanes);
+
+	/**
+	 * Close the file
+	 */
+	public abstract void close();
+}
@@ -0,0 +1,520 @@
+/*
+
+ Written by Andrey Rozenberg (jaera at yandex.com)
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+import ij.*;
+import ij.process.*;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Coarse-to-fine clean-up of sparse 2D channels.
+ * <p>
+ * The channel is divided into tiles of TILE x TILE pixels. A cheap pass over
+ * a pyramid level reduced by COARSE (max. and min. of the blocks, the min. eroded by
+ * the rolling ball radius as the background) finds the tiles that may contain
+ * puncta. The background subtraction, the maximum filter and the watershed
+ * are then run only on the candidate tiles plus a margin wide enough for these
+ * filters to give the same values as on the whole frame.
+ * The mean subtraction and the auto threshold stay global: the empty tiles are
+ * filled with the values of a sample of empty blocks, which are processed like
+ * the candidate tiles, so that the mean and the histogram are estimated for the whole
+ * frame. Outside the candidate tiles and their direct neighbours the mask is cleared.
+ * <p>
+ * Not exact by design: the caller should compare the result with the full-frame
+ * clean-up on the first images.
+ */
+public class SparseDetector {
+	public static final int    TILE         = 16;    // tile size [px]
+	public static final int    COARSE       = 4;     // reduction of the coarse pass
+	public static final int    CHUNK        = 8;     // the candidates are filtered in chunks of CHUNK x CHUNK tiles
+	public static final int    BLOCK        = 4;     // size of the sample blocks [tiles]
+	public static final double SAMPLES      = 0.02;  // fraction of the frame to be covered by the sample blocks
+	public static final double SENSITIVITY  = 0.5;   // fraction of the coarse threshold a candidate must reach
+	public static final double MAX_COVERAGE = 0.5;   // max. fraction of the frame to be processed, otherwise not worth it
+	public static final double MAX_DRIFT    = 0.05;  // max. relative change of the coarse threshold by the filling
+
+	private double       rollBallRad;   // rolling ball radius
+	private double       maxFiltRad;    // "maximum" filter radius
+	private String       threshMethod;  // auto threshold method
+	private PixelKernels kernels;       // kernels for smoothing, subtraction and binarization (null = ImageJ commands)
+	private int          margin;        // context needed by the filters [px]
+	private double       coverage;      // fraction of the frame filtered the last time [1 = the full frame is left to the caller]
+	private float[]      coarse;        // coarse signal of the last channel (before the mean subtraction)
+	private int          coarseWidth;   // its width
+	private int          fallbacks;     // number of channels the filling was not representative for
+
+	/**
+	 * Constructor.
+	 *
+	 * @param rollBallRad   rolling ball radius
+	 * @param maxFiltRad    "maximum" filter radius
+	 * @param threshMethod  auto threshold method
+	 * @param kernels       kernels for smoothing, subtraction and binarization (null = ImageJ commands)
+	 */
+	public SparseDetector(double rollBallRad, double maxFiltRad, String threshMethod, PixelKernels kernels) {
+		this.rollBallRad  = rollBallRad;
+		this.maxFiltRad   = maxFiltRad;
+		this.threshMethod = threshMethod;
+		this.kernels      = kernels;
+		// the rolling ball reaches twice its radius, plus the 3x3 presmoothing and the
+		// interpolation of the shrunk background (shrink factor as in BackgroundSubtracter)
+		int shrink  = rollBallRad <= 10 ? 1 : rollBallRad <= 30 ? 2 : rollBallRad <= 100 ? 4 : 8;
+		margin      = 2 * (int)Math.ceil(rollBallRad) + 2 * shrink + 1 + (int)Math.ceil(maxFiltRad) + 1;
+	}
+
+	/**
+	 * A get for the fraction of the frame that was filtered the last time,
+	 * 1 if cleanUp() returned false
+	 *
+	 * @return  the fraction
+	 */
+	public double getCoverage() {
+		return coverage;
+	}
+
+	/**
+	 * A get for the number of channels left to the full-frame clean-up
+	 * because the samples did not represent the empty tiles
+	 *
+	 * @return  the number
+	 */
+	public int getFallbacks() {
+		return fallbacks;
+	}
+
+	/**
+	 * The equivalent of SynapseCounterEngine.preprocess() and binarize() for the current slice of the channel.
+	 * Does nothing if the channel is not 8- or 16-bit, if the signal covers too much of it,
+	 * or if filling the empty tiles with the samples would move the threshold (see isRepresentative())
+	 *
+	 * @param  channel  the channel
+	 * @return          false if nothing was done and the full-frame clean-up is needed
+	 */
+	public boolean cleanUp(ImagePlus channel) {
+		coverage = 1;
+		int bitDepth = channel.getBitDepth();
+		if (bitDepth != 8 && bitDepth != 16) return false;
+		int width   = channel.getWidth();
+		int height  = channel.getHeight();
+		int tilesX  = (width  + TILE - 1) / TILE;
+		int tilesY  = (height + TILE - 1) / TILE;
+		if (tilesX < 2 * BLOCK || tilesY < 2 * BLOCK) return false;
+
+		// coarse pass: where to look
+		boolean[] keep = dilate(findCandidates(channel.getProcessor(), tilesX, tilesY), tilesX, tilesY, 1);
+		Rectangle frame = new Rectangle(0, 0, width, height);
+		// the candidates of each chunk are filtered together, with the margin around their bounding rectangle
+		ArrayList<Rectangle> pieces = new ArrayList<Rectangle>();  // tiles of the pieces
+		ArrayList<Rectangle> crops  = new ArrayList<Rectangle>();  // pixels to be filtered for the pieces
+		for (int cy = 0; cy < tilesY; cy += CHUNK) {
+			for (int cx = 0; cx < tilesX; cx += CHUNK) {
+				int minX = tilesX, minY = tilesY, maxX = -1, maxY = -1;
+				for (int ty = cy; ty < Math.min(tilesY, cy + CHUNK); ty++) {
+					for (int tx = cx; tx < Math.min(tilesX, cx + CHUNK); tx++) {
+						if (!keep[ty * tilesX + tx]) continue;
+						minX = Math.min(minX, tx); maxX = Math.max(maxX, tx);
+						minY = Math.min(minY, ty); maxY = Math.max(maxY, ty);
+					}
+				}
+				if (maxX < 0) continue;
+				pieces.add(new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1));
+				crops.add(expand(new Rectangle(minX * TILE, minY * TILE, (maxX - minX + 1) * TILE, (maxY - minY + 1) * TILE), frame));
+			}
+		}
+		ArrayList<Rectangle> blocks = findSamples(keep, tilesX, tilesY, width, height);
+		Rectangle[] sampleRects = new Rectangle[blocks.size()];
+		for (int k = 0; k < sampleRects.length; k++) sampleRects[k] = expand(blocks.get(k), frame);
+		ArrayList<Rectangle> processed = new ArrayList<Rectangle>(crops);
+		processed.addAll(Arrays.asList(sampleRects));
+		double myCoverage = unionArea(processed) / ((double)width * height);
+		if (myCoverage > MAX_COVERAGE || blocks.isEmpty()) return false;
+
+		// the empty tiles get the values of the sample tiles in turn: which tile from where
+		boolean[] filled = new boolean[tilesX * tilesY];
+		for (int t = 0; t < keep.length; t++) filled[t] = keep[t];
+		ArrayList<int[]> sampleTiles = new ArrayList<int[]>();  // sample number and tile position
+		for (int k = 0; k < blocks.size(); k++) {
+			Rectangle block = blocks.get(k);
+			for (int ty = block.y / TILE; ty < (block.y + block.height) / TILE; ty++) {
+				for (int tx = block.x / TILE; tx < (block.x + block.width) / TILE; tx++) {
+					filled[ty * tilesX + tx] = true;
+					sampleTiles.add(new int[] { k, tx, ty });
+				}
+			}
+		}
+		int[] fill = new int[tilesX * tilesY];  // index in sampleTiles of the tile to be copied [-1 = none]
+		int next = 0;
+		for (int t = 0; t < fill.length; t++) fill[t] = filled[t] ? -1 : next++ % sampleTiles.size();
+		if (!isRepresentative(sampleTiles, fill, tilesX)) {
+			fallbacks++;
+			return false;
+		}
+
+		// the full-frame steps of preprocess() are done as usual
+		SynapseCounterEngine.smooth(channel, false, kernels);
+		ImageProcessor ip = channel.getProcessor();
+
+		// background subtraction and maximum filter of the candidates and the samples
+		ImageProcessor[] cropped = new ImageProcessor[crops.size()];
+		for (int k = 0; k < cropped.length; k++) cropped[k] = crop(ip, crops.get(k));
+		ImageProcessor[] sampled = new ImageProcessor[blocks.size()];
+		for (int k = 0; k < sampled.length; k++) sampled[k] = crop(ip, sampleRects[k]);
+		for (int k = 0; k < cropped.length; k++) filterBackground(cropped[k]);
+		for (int k = 0; k < sampled.length; k++) filterBackground(sampled[k]);
+
+		// put the results back, tile by tile
+		for (int k = 0; k < cropped.length; k++) {
+			Rectangle piece = pieces.get(k);
+			Rectangle rect  = crops.get(k);
+			for (int ty = piece.y; ty < piece.y + piece.height; ty++) {
+				for (int tx = piece.x; tx < piece.x + piece.width; tx++) {
+					if (!keep[ty * tilesX + tx]) continue;
+					copyTile(cropped[k], tx * TILE - rect.x, ty * TILE - rect.y, ip, tx, ty);
+				}
+			}
+		}
+		for (int[] source : sampleTiles) {
+			Rectangle rect = sampleRects[source[0]];
+			copyTile(sampled[source[0]], source[1] * TILE - rect.x, source[2] * TILE - rect.y, ip, source[1], source[2]);
+		}
+		for (int t = 0; t < fill.length; t++) {
+			if (fill[t] < 0) continue;
+			int[] source = sampleTiles.get(fill[t]);
+			Rectangle rect = sampleRects[source[0]];
+			copyTile(sampled[source[0]], source[1] * TILE - rect.x, source[2] * TILE - rect.y, ip, t % tilesX, t / tilesX);
+		}
+
+		// global mean and threshold
+		SynapseCounterEngine.subtractMean(channel, false, kernels);
+		threshold(channel);
+		ip = channel.getProcessor();
+		ip.setValue(0);  // the background, threshold() makes the particles 255
+		for (int t = 0; t < keep.length; t++) {
+			if (keep[t]) continue;
+			ip.setRoi((t % tilesX) * TILE, (t / tilesX) * TILE, TILE, TILE);
+			ip.fill();
+		}
+		ip.resetRoi();
+
+		// watershed of the groups of candidates, with a tile of background around
+		int[] labels = new int[tilesX * tilesY];
+		ArrayList<Rectangle> groups = label(keep, tilesX, tilesY, labels);
+		for (int k = 0; k < groups.size(); k++) {
+			Rectangle rect = groups.get(k);
+			rect = new Rectangle(rect.x - TILE, rect.y - TILE, rect.width + 2 * TILE, rect.height + 2 * TILE).intersection(frame);
+			ImageProcessor mask = crop(ip, rect);
+			watershed(mask);
+			for (int t = 0; t < labels.length; t++) {
+				if (labels[t] == k + 1)
+					copyTile(mask, (t % tilesX) * TILE - rect.x, (t / tilesX) * TILE - rect.y, ip, t % tilesX, t / tilesX);
+			}
+		}
+		coverage = myCoverage;
+		return true;
+	}
+
+	/**
+	 * The auto threshold of a coarse signal after the subtraction of its mean,
+	 * as the channel is thresholded after the subtraction of its mean
+	 *
+	 * @param  signal  the signal (is modified)
+	 * @return         the threshold, or NaN if there is no signal above the mean
+	 */
+	private double coarseThreshold(float[] signal) {
+		double sum = 0;
+		for (int i = 0; i < signal.length; i++) sum += signal[i];
+		float mean = (float)(sum / signal.length);
+		for (int i = 0; i < signal.length; i++) signal[i] = Math.max(0, signal[i] - mean);
+		FloatProcessor fp = new FloatProcessor(coarseWidth, signal.length / coarseWidth, signal, null);
+		fp.resetMinAndMax();
+		if (fp.getMax() <= 0) return Double.NaN;
+		fp.setAutoThreshold(AutoThresholder.Method.valueOf(threshMethod), true, ImageProcessor.NO_LUT_UPDATE);
+		return fp.getMinThreshold();
+	}
+
+	/**
+	 * The per-image check of the sampling. The coarse signal of the frame as it will be
+	 * filled (the empty tiles replaced by the sample tiles) is thresholded like the coarse
+	 * signal of the actual frame. If the two thresholds differ by more than MAX_DRIFT,
+	 * the samples do not represent the empty tiles well enough for the global mean and threshold
+	 *
+	 * @param  sampleTiles  sample number and tile position of the sample tiles
+	 * @param  fill         index in sampleTiles of the tile copied to each tile [-1 = none]
+	 * @param  tilesX       number of tiles per row
+	 * @return              true if the filling may be used
+	 */
+	private boolean isRepresentative(ArrayList<int[]> sampleTiles, int[] fill, int tilesX) {
+		int cw = coarseWidth;
+		int ch = coarse.length / cw;
+		int n  = TILE / COARSE;  // coarse pixels per tile and axis
+		float[] filled = coarse.clone();
+		for (int t = 0; t < fill.length; t++) {
+			if (fill[t] < 0) continue;
+			int[] source = sampleTiles.get(fill[t]);
+			int tx = t % tilesX, ty = t / tilesX;
+			for (int y = 0; y < n && ty * n + y < ch; y++) {
+				for (int x = 0; x < n && tx * n + x < cw; x++)
+					filled[(ty * n + y) * cw + tx * n + x] = coarse[(source[2] * n + y) * cw + source[1] * n + x];
+			}
+		}
+		double actual  = coarseThreshold(coarse.clone());
+		double sampled = coarseThreshold(filled);
+		if (Double.isNaN(actual) || Double.isNaN(sampled)) return Double.isNaN(actual) == Double.isNaN(sampled);
+		return Math.abs(sampled - actual) <= MAX_DRIFT * actual;
+	}
+
+	/**
+	 * The area covered by a set of rectangles, which may overlap.
+	 * The x axis is cut at the rectangle edges; within each cut the y intervals are merged
+	 *
+	 * @param  rects  the rectangles
+	 * @return        the area [px]
+	 */
+	static double unionArea(ArrayList<Rectangle> rects) {
+		int n = rects.size();
+		int[] xs = new int[2 * n];
+		for (int k = 0; k < n; k++) {
+			xs[2 * k]     = rects.get(k).x;
+			xs[2 * k + 1] = rects.get(k).x + rects.get(k).width;
+		}
+		Arrays.sort(xs);
+		double area = 0;
+		long[] intervals = new long[n];
+		for (int i = 0; i + 1 < xs.length; i++) {
+			if (xs[i] == xs[i + 1]) continue;
+			int count = 0;
+			for (Rectangle rect : rects) {
+				if (rect.x <= xs[i] && rect.x + rect.width >= xs[i + 1] && rect.height > 0)
+					intervals[count++] = ((long)rect.y << 32) | (rect.y + rect.height);
+			}
+			Arrays.sort(intervals, 0, count);
+			long covered = 0;
+			int end = Integer.MIN_VALUE;
+			for (int k = 0; k < count; k++) {
+				int from = Math.max(end, (int)(intervals[k] >> 32));
+				int to   = (int)intervals[k];
+				if (to > from) covered += to - from;
+				end = Math.max(end, to);
+			}
+			area += (double)covered * (xs[i + 1] - xs[i]);
+		}
+		return area;
+	}
+
+	/**
+	 * Background subtraction and maximum filter of a part of the channel
+	 *
+	 * @param  ip  the part
+	 */
+	protected void filterBackground(ImageProcessor ip) {
+		SynapseCounterEngine.filterBackground(new ImagePlus("", ip), rollBallRad, maxFiltRad, false);
+	}
+
+	/**
+	 * Auto threshold and binarization of the whole channel
+	 *
+	 * @param  channel  the channel
+	 */
+	protected void threshold(ImagePlus channel) {
+		SynapseCounterEngine.threshold(channel, threshMethod, false, !Prefs.blackBackground, kernels);
+	}
+
+	/**
+	 * Watershed of a part of the binary channel
+	 *
+	 * @param  ip  the part
+	 */
+	protected void watershed(ImageProcessor ip) {
+		SynapseCounterEngine.watershed(new ImagePlus("", ip), false);
+	}
+
+	/**
+	 * The coarse pass. The signal of a coarse pixel is its max. minus the min. of
+	 * the coarse pixels within the rolling ball radius, an upper bound of what
+	 * remains after the background subtraction. The candidates are the tiles with
+	 * a signal above SENSITIVITY times the auto threshold of the signal
+	 */
+	private boolean[] findCandidates(ImageProcessor ip, int tilesX, int tilesY) {
+		int width  = ip.getWidth();
+		int height = ip.getHeight();
+		int cw = (width  + COARSE - 1) / COARSE;
+		int ch = (height + COARSE - 1) / COARSE;
+		float[] hi = new float[cw * ch];
+		float[] lo = new float[cw * ch];
+		Arrays.fill(hi, Float.NEGATIVE_INFINITY);
+		Arrays.fill(lo, Float.POSITIVE_INFINITY);
+		for (int y = 0; y < height; y++) {
+			int row = (y / COARSE) * cw;
+			for (int x = 0; x < width; x++) {
+				float v = ip.getf(y * width + x);
+				int   i = row + x / COARSE;
+				if (v > hi[i]) hi[i] = v;
+				if (v < lo[i]) lo[i] = v;
+			}
+		}
+		float[] background = erode(lo, cw, ch, (int)Math.ceil(rollBallRad / COARSE) + 1);
+		for (int i = 0; i < hi.length; i++) hi[i] -= background[i];
+		coarse      = hi.clone();
+		coarseWidth = cw;
+
+		boolean[] candidates = new boolean[tilesX * tilesY];
+		double level = SENSITIVITY * coarseThreshold(hi);
+		if (Double.isNaN(level)) return candidates;
+		for (int cy = 0; cy < ch; cy++) {
+			for (int cx = 0; cx < cw; cx++) {
+				if (hi[cy * cw + cx] > level)
+					candidates[(cy * COARSE / TILE) * tilesX + cx * COARSE / TILE] = true;
+			}
+		}
+		return candidates;
+	}
+
+	/**
+	 * Min. filter with a square of the given radius (separable)
+	 */
+	private static float[] erode(float[] pixels, int width, int height, int radius) {
+		float[] rows = new float[pixels.length];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				float min = Float.POSITIVE_INFINITY;
+				for (int i = Math.max(0, x - radius); i <= Math.min(width - 1, x + radius); i++)
+					min = Math.min(min, pixels[y * width + i]);
+				rows[y * width + x] = min;
+			}
+		}
+		float[] result = new float[pixels.length];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				float min = Float.POSITIVE_INFINITY;
+				for (int j = Math.max(0, y - radius); j <= Math.min(height - 1, y + radius); j++)
+					min = Math.min(min, rows[j * width + x]);
+				result[y * width + x] = min;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Dilation of the tile mask with a square of the given radius
+	 */
+	private static boolean[] dilate(boolean[] tiles, int tilesX, int tilesY, int radius) {
+		boolean[] result = new boolean[tiles.length];
+		for (int ty = 0; ty < tilesY; ty++) {
+			for (int tx = 0; tx < tilesX; tx++) {
+				if (!tiles[ty * tilesX + tx]) continue;
+				for (int y = Math.max(0, ty - radius); y <= Math.min(tilesY - 1, ty + radius); y++)
+					for (int x = Math.max(0, tx - radius); x <= Math.min(tilesX - 1, tx + radius); x++)
+						result[y * tilesX + x] = true;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Label the 8-connected groups of tiles
+	 *
+	 * @return  the bounding rectangles of the groups in pixels (may reach beyond the image); labels start with 1
+	 */
+	private static ArrayList<Rectangle> label(boolean[] tiles, int tilesX, int tilesY, int[] labels) {
+		ArrayList<Rectangle> rects = new ArrayList<Rectangle>();
+		int[] queue = new int[tiles.length];
+		for (int start = 0; start < tiles.length; start++) {
+			if (!tiles[start] || labels[start] != 0) continue;
+			int label = rects.size() + 1;
+			int minX = tilesX, minY = tilesY, maxX = -1, maxY = -1;
+			int head = 0, tail = 0;
+			queue[tail++] = start;
+			labels[start] = label;
+			while (head < tail) {
+				int t  = queue[head++];
+				int tx = t % tilesX, ty = t / tilesX;
+				minX = Math.min(minX, tx); maxX = Math.max(maxX, tx);
+				minY = Math.min(minY, ty); maxY = Math.max(maxY, ty);
+				for (int y = Math.max(0, ty - 1); y <= Math.min(tilesY - 1, ty + 1); y++) {
+					for (int x = Math.max(0, tx - 1); x <= Math.min(tilesX - 1, tx + 1); x++) {
+						int n = y * tilesX + x;
+						if (tiles[n] && labels[n] == 0) {
+							labels[n] = label;
+							queue[tail++] = n;
+						}
+					}
+				}
+			}
+			rects.add(new Rectangle(minX * TILE, minY * TILE, (maxX - minX + 1) * TILE, (maxY - minY + 1) * TILE));
+		}
+		return rects;
+	}
+
+	/**
+	 * Choose the sample blocks: blocks of BLOCK x BLOCK tiles that lie within the image
+	 * and have no tile of the candidate regions, evenly spread over the image
+	 * and covering about SAMPLES of it
+	 *
+	 * @return  the blocks in pixels
+	 */
+	private static ArrayList<Rectangle> findSamples(boolean[] keep, int tilesX, int tilesY, int width, int height) {
+		ArrayList<Rectangle> eligible = new ArrayList<Rectangle>();
+		for (int by = 0; (by + 1) * BLOCK * TILE <= height; by++) {
+			for (int bx = 0; (bx + 1) * BLOCK * TILE <= width; bx++) {
+				boolean empty = true;
+				for (int ty = by * BLOCK; ty < (by + 1) * BLOCK && empty; ty++)
+					for (int tx = bx * BLOCK; tx < (bx + 1) * BLOCK && empty; tx++)
+						empty = !keep[ty * tilesX + tx];
+				if (empty) eligible.add(new Rectangle(bx * BLOCK * TILE, by * BLOCK * TILE, BLOCK * TILE, BLOCK * TILE));
+			}
+		}
+		int wanted = (int)Math.ceil(SAMPLES * width * height / (BLOCK * TILE * BLOCK * TILE));
+		double step = Math.max(1, (double)eligible.size() / wanted);
+		ArrayList<Rectangle> blocks = new ArrayList<Rectangle>();
+		for (double i = 0; i < eligible.size(); i += step) blocks.add(eligible.get((int)i));
+		return blocks;
+	}
+
+	/**
+	 * Add the margin to a rectangle, clipped to the frame.
+	 * The corner is aligned to a multiple of 8, so that the background is shrunk
+	 * in the same blocks as for the whole frame
+	 */
+	private Rectangle expand(Rectangle rect, Rectangle frame) {
+		int x = Math.max(0, (rect.x - margin) & ~7);
+		int y = Math.max(0, (rect.y - margin) & ~7);
+		return new Rectangle(x, y, rect.x + rect.width + margin - x, rect.y + rect.height + margin - y).intersection(frame);
+	}
+
+	/**
+	 * Copy a part of the processor
+	 */
+	private static ImageProcessor crop(ImageProcessor ip, Rectangle rect) {
+		ip.setRoi(rect);
+		ImageProcessor part = ip.crop();
+		ip.resetRoi();
+		return part;
+	}
+
+	/**
+	 * Copy a tile from the source (at x, y) to the tile (tx, ty) of the destination, clipped to both
+	 */
+	private static void copyTile(ImageProcessor src, int x, int y, ImageProcessor dst, int tx, int ty) {
+		int w = Math.min(Math.min(TILE, src.getWidth()  - x), dst.getWidth()  - tx * TILE);
+		int h = Math.min(Math.min(TILE, src.getHeight() - y), dst.getHeight() - ty * TILE);
+		for (int j = 0; j < h; j++)
+			for (int i = 0; i < w; i++)
+				dst.set(tx * TILE + i, ty * TILE + j, src.get(x + i, y + j));
+	}
+}
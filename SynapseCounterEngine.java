@@ -0,0 +1,487 @@
+/*
+
+ Written by Andrey Rozenberg (jaera at yandex.com)
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+import ij.*;
+import ij.measure.Measurements;
+import ij.plugin.filter.*;
+import ij.process.*;
+import java.util.Arrays;
+
+/**
+ * The analysis of a pair of channels, independent of the plugin.
+ * <p>
+ * The analysis has three stages: the preprocessing turns each channel into
+ * a binary mask, the colocalization combines the two masks, and the labelling
+ * counts and measures the particles of the three masks. Each stage is an
+ * interface, so that other implementations can be plugged in.
+ * <p>
+ * The engine keeps no state between the analyses other than that of the stages:
+ * the parameters are immutable, and the default stages neither read the settings
+ * of the plugin or the "Black background" option from Prefs, nor use WindowManager
+ * or the ImageJ commands, but call the filters directly (which may still take
+ * the number of threads from ImageJ). The default preprocessing is the one of the plugin.
+ * One engine can thus be used from several threads at once, and engines with
+ * different parameters can run side by side. Stages that are plugged in
+ * must be thread-safe for that.
+ */
+public class SynapseCounterEngine {
+	public static final int PRE = 0, POS = 1, COLOC = 2;  // indices of the masks and puncta in the Result
+
+	private final SynapseCounterParams params;  // the parameters
+	private final Preprocessor preprocessor;    // channel -> mask
+	private final Labeller     labeller;        // mask -> puncta
+	private final Colocalizer  colocalizer;     // masks -> colocalization mask
+
+	private static final String AUTO_THRESHOLD_CLASS = "fiji.threshold.Auto_Threshold";  // the "Auto Threshold" plugin
+	private static volatile boolean autoThresholdFallback = false;  // whether the 256-bin fallback for 16-bit images was reported
+
+	/**
+	 * Turns a channel into a binary mask. May modify the channel
+	 */
+	public interface Preprocessor {
+		/**
+		 * @param  channel  the channel (in 2D only its current slice is used)
+		 * @return          the mask, or null if the channel could not be processed
+		 */
+		BitMask process(ImagePlus channel);
+	}
+
+	/**
+	 * Finds the particles of a mask within a size range
+	 */
+	public interface Labeller {
+		/**
+		 * @param  mask     the mask
+		 * @param  minSize  min. particle size [px or voxels]
+		 * @param  maxSize  max. particle size [px or voxels]
+		 * @return          the particles
+		 */
+		Puncta label(BitMask mask, double minSize, double maxSize);
+	}
+
+	/**
+	 * Combines the pre- and postsynaptic masks
+	 */
+	public interface Colocalizer {
+		/**
+		 * @param  pre  presynaptic mask
+		 * @param  pos  postsynaptic mask
+		 * @return      colocalization mask, or null if the masks do not match
+		 */
+		BitMask colocalize(BitMask pre, BitMask pos);
+	}
+
+	/**
+	 * The particles found in a mask
+	 */
+	public static class Puncta {
+		private final int        count;      // number of particles
+		private final double     sizeMean;   // mean particle size (calibrated)
+		private final double[][] centroids;  // x, y and z coordinates of the centroids (calibrated)
+
+		public Puncta(int count, double sizeMean, double[][] centroids) {
+			this.count     = count;
+			this.sizeMean  = sizeMean;
+			this.centroids = centroids;
+		}
+
+		public int        getCount()     { return count; }
+		public double     getSizeMean()  { return sizeMean; }
+		public double[][] getCentroids() { return centroids; }
+	}
+
+	/**
+	 * The result of an analysis
+	 */
+	public static class Result {
+		private final BitMask[]     masks;    // pre-, postsynaptic and colocalization masks
+		private final Puncta[]      puncta;   // their particles
+		private final PunctaPairing pairing;  // pairs of pre- and postsynaptic puncta (null if off)
+
+		Result(BitMask[] masks, Puncta[] puncta, PunctaPairing pairing) {
+			this.masks   = masks;
+			this.puncta  = puncta;
+			this.pairing = pairing;
+		}
+
+		/**
+		 * @param  which  PRE, POS or COLOC
+		 * @return        the mask
+		 */
+		public BitMask getMask(int which) {
+			return masks[which];
+		}
+
+		/**
+		 * @param  which  PRE, POS or COLOC
+		 * @return        the particles of the mask
+		 */
+		public Puncta getPuncta(int which) {
+			return puncta[which];
+		}
+
+		/**
+		 * @return  the pairing, or null if the max. pairing distance is 0
+		 */
+		public PunctaPairing getPairing() {
+			return pairing;
+		}
+	}
+
+	/**
+	 * Constructor. Uses the default stages
+	 *
+	 * @param params  the parameters
+	 */
+	public SynapseCounterEngine(SynapseCounterParams params) {
+		this(params, null, null, null);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param params        the parameters
+	 * @param preprocessor  the preprocessing (null = DefaultPreprocessor)
+	 * @param labeller      the labelling (null = DefaultLabeller)
+	 * @param colocalizer   the colocalization (null = DefaultColocalizer)
+	 */
+	public SynapseCounterEngine(SynapseCounterParams params, Preprocessor preprocessor, Labeller labeller, Colocalizer colocalizer) {
+		this.params       = params;
+		this.preprocessor = preprocessor != null ? preprocessor : new DefaultPreprocessor(params);
+		this.labeller     = labeller     != null ? labeller     : new DefaultLabeller(params.is3d());
+		this.colocalizer  = colocalizer  != null ? colocalizer  : new DefaultColocalizer();
+	}
+
+	/**
+	 * A get for the parameters
+	 *
+	 * @return  the parameters
+	 */
+	public SynapseCounterParams getParams() {
+		return params;
+	}
+
+	/**
+	 * Analyze a pair of channels. The channels are modified by the default preprocessing
+	 *
+	 * @param  pre  presynaptic channel
+	 * @param  pos  postsynaptic channel
+	 * @return      the result
+	 * @throws      IllegalArgumentException if a channel could not be turned into a mask or the masks do not match
+	 */
+	public Result analyze(ImagePlus pre, ImagePlus pos) {
+		BitMask preMask = preprocessor.process(pre);
+		if (preMask == null) throw new IllegalArgumentException("presynaptic channel could not be binarized");
+		BitMask posMask = preprocessor.process(pos);
+		if (posMask == null) throw new IllegalArgumentException("postsynaptic channel could not be binarized");
+		BitMask synMask = colocalizer.colocalize(preMask, posMask);
+		if (synMask == null) throw new IllegalArgumentException("the channels differ in size");
+		Puncta[] puncta = new Puncta[] {
+			labeller.label(preMask, params.getMinSizePre(),   params.getMaxSizePre()),
+			labeller.label(posMask, params.getMinSizePos(),   params.getMaxSizePos()),
+			labeller.label(synMask, params.getMinSizeColoc(), params.getMaxSizeColoc())
+		};
+		PunctaPairing pairing = params.getMaxPairDist() > 0 ?
+			new PunctaPairing(puncta[PRE].getCentroids(), puncta[POS].getCentroids(), params.getMaxPairDist()) : null;
+		return new Result(new BitMask[] { preMask, posMask, synMask }, puncta, pairing);
+	}
+
+	/**
+	 * The first part of the clean-up: smoothing, background subtraction,
+	 * maximum filter and subtraction of the mean.
+	 * Depends only on the arguments, so that its output can be cached by the preview.
+	 * The steps call the ImageProcessor methods behind the respective ImageJ commands
+	 * directly, so that they can run in any thread
+	 *
+	 * @param  channel      the channel
+	 * @param  rollBallRad  rolling ball radius
+	 * @param  maxFiltRad   "maximum" filter radius
+	 * @param  is3d         2d/3d flag
+	 * @param  kernels      kernels for smoothing and subtraction (null = ImageProcessor methods)
+	 */
+	static void preprocess(ImagePlus channel, double rollBallRad, double maxFiltRad, boolean is3d, PixelKernels kernels) {
+		smooth(channel, is3d, kernels);
+		filterBackground(channel, rollBallRad, maxFiltRad, is3d);
+		subtractMean(channel, is3d, kernels);
+	}
+
+	/**
+	 * Smoothing, the first step of preprocess()
+	 *
+	 * @param  channel  the channel
+	 * @param  is3d     2d/3d flag
+	 * @param  kernels  kernels for smoothing (null = ImageProcessor.smooth())
+	 */
+	static void smooth(ImagePlus channel, boolean is3d, PixelKernels kernels) {
+		if (kernels != null && kernels.smooth(channel, is3d)) return;
+		ImageStack stack = channel.getStack();
+		for (int n = firstSlice(channel, is3d); n <= lastSlice(channel, is3d); n++)
+			stack.getProcessor(n).smooth();
+	}
+
+	/**
+	 * Background subtraction and maximum filter, the neighbourhood operations of preprocess().
+	 * The same as "Subtract Background..." with the default options and "Maximum..."
+	 *
+	 * @param  channel      the channel
+	 * @param  rollBallRad  rolling ball radius
+	 * @param  maxFiltRad   "maximum" filter radius
+	 * @param  is3d         2d/3d flag
+	 */
+	static void filterBackground(ImagePlus channel, double rollBallRad, double maxFiltRad, boolean is3d) {
+		ImageStack stack = channel.getStack();
+		for (int n = firstSlice(channel, is3d); n <= lastSlice(channel, is3d); n++) {
+			ImageProcessor ip = stack.getProcessor(n);
+			new BackgroundSubtracter().rollingBallBackground(ip, rollBallRad, false, false, false, true, true);
+			new RankFilters().rank(ip, maxFiltRad, RankFilters.MAX);
+		}
+	}
+
+	/**
+	 * Subtraction of the mean, the last step of preprocess()
+	 *
+	 * @param  channel  the channel
+	 * @param  is3d     2d/3d flag
+	 * @param  kernels  kernels for subtraction (null = ImageProcessor.subtract())
+	 */
+	static void subtractMean(ImagePlus channel, boolean is3d, PixelKernels kernels) {
+		final double mean = (double)channel.getStatistics(Measurements.MEAN).mean;
+		if (kernels != null && kernels.subtract(channel, mean, is3d)) return;
+		ImageStack stack = channel.getStack();
+		for (int n = firstSlice(channel, is3d); n <= lastSlice(channel, is3d); n++)
+			stack.getProcessor(n).subtract(mean);
+	}
+
+	/**
+	 * The second part of the clean-up: auto threshold, binarization and watershed
+	 *
+	 * @param  channel       the preprocessed channel
+	 * @param  threshMethod  auto threshold method
+	 * @param  is3d          2d/3d flag
+	 * @param  invertedLut   whether the masks get an inverted LUT (the particles are 255 either way)
+	 * @param  kernels       kernels for the binarization (null = ImageProcessor.getf())
+	 */
+	static void binarize(ImagePlus channel, String threshMethod, boolean is3d, boolean invertedLut, PixelKernels kernels) {
+		threshold(channel, threshMethod, is3d, invertedLut, kernels);
+		watershed(channel, is3d);
+	}
+
+	/**
+	 * Auto threshold and binarization, the global steps of binarize().
+	 * The same as "Auto Threshold" with "white" followed by "Make Binary":
+	 * each slice is thresholded on its own, and the pixels above the threshold become 255.
+	 * Other than 8-bit channels are converted to 8 bits, in 2D mode with the other slices empty
+	 *
+	 * @param  channel       the preprocessed channel
+	 * @param  threshMethod  auto threshold method
+	 * @param  is3d          2d/3d flag
+	 * @param  invertedLut   whether the masks get an inverted LUT
+	 * @param  kernels       kernels for the binarization (null = ImageProcessor.getf())
+	 */
+	static void threshold(ImagePlus channel, String threshMethod, boolean is3d, boolean invertedLut, PixelKernels kernels) {
+		AutoThresholder.Method method = AutoThresholder.Method.valueOf(threshMethod);
+		int width  = channel.getWidth();
+		int height = channel.getHeight();
+		boolean is8bit = channel.getBitDepth() == 8;
+		ImageStack stack  = channel.getStack();
+		ImageStack masks  = new ImageStack(width, height);
+		ByteProcessor lut = new ByteProcessor(1, 1);
+		if (invertedLut) lut.invertLut();
+		int first = firstSlice(channel, is3d);
+		int last  = lastSlice(channel, is3d);
+		for (int n = 1; n <= stack.getSize(); n++) {
+			if (n < first || n > last) {
+				masks.addSlice(stack.getSliceLabel(n), is8bit ? stack.getPixels(n) : new byte[width * height]);
+				continue;
+			}
+			ImageProcessor ip = stack.getProcessor(n);
+			double threshold  = autoThreshold(ip, method);
+			byte[] pixels = is8bit ? (byte[])ip.getPixels() : new byte[width * height];
+			if (kernels == null || !kernels.threshold(ip, threshold, pixels)) {
+				for (int i = 0; i < pixels.length; i++)
+					pixels[i] = ip.getf(i) > threshold ? (byte)255 : (byte)0;
+			}
+			masks.addSlice(stack.getSliceLabel(n), pixels);
+		}
+		masks.setColorModel(lut.getColorModel());
+		if (!is8bit) channel.getCalibration().disableDensityCalibration();
+		channel.setStack(masks);
+		channel.getProcessor().setColorModel(lut.getColorModel());
+	}
+
+	/**
+	 * The auto threshold of a slice, as found by the "Auto Threshold" plugin:
+	 * on the 256 bins of an 8-bit slice, on the full histogram of a 16-bit slice
+	 * (trimmed to the range of its values). The methods of the plugin (part of Fiji)
+	 * are called directly. Without the plugin, 8-bit slices are thresholded with
+	 * ImageJ's AutoThresholder (a port of the same methods), 16-bit ones on 256 bins
+	 *
+	 * @param  ip      the slice
+	 * @param  method  auto threshold method
+	 * @return         the threshold: the particles are the pixels above it
+	 */
+	static double autoThreshold(ImageProcessor ip, AutoThresholder.Method method) {
+		if (ip instanceof ByteProcessor || ip instanceof ShortProcessor) {
+			int[] histogram = ip.getHistogram();
+			int min = 0, max = histogram.length - 1;
+			if (ip instanceof ShortProcessor) {
+				while (min < max && histogram[min] == 0) min++;
+				while (max > min && histogram[max] == 0) max--;
+			}
+			java.lang.reflect.Method implementation = getAutoThresholdMethod(method);
+			if (implementation != null) {
+				try {
+					return min + (Integer)implementation.invoke(null, (Object)Arrays.copyOfRange(histogram, min, max + 1));
+				} catch (ReflectiveOperationException e) {
+					IJ.log("SynapseCounter: Auto Threshold failed (" + e + "), using ImageJ's AutoThresholder");
+				}
+			}
+			if (ip instanceof ByteProcessor) return new AutoThresholder().getThreshold(method, histogram);
+			if (!autoThresholdFallback) {
+				autoThresholdFallback = true;
+				IJ.log("SynapseCounter: the Auto Threshold plugin is not available, 16-bit images are thresholded on 256 bins");
+			}
+		}
+		ImageProcessor copy = ip.duplicate();
+		copy.setAutoThreshold(method, true, ImageProcessor.NO_LUT_UPDATE);
+		return Math.nextDown(copy.getMinThreshold());
+	}
+
+	/**
+	 * Find the method of the "Auto Threshold" plugin
+	 *
+	 * @param  method  auto threshold method
+	 * @return         the static method taking the histogram, or null if not available
+	 */
+	private static java.lang.reflect.Method getAutoThresholdMethod(AutoThresholder.Method method) {
+		String name = method == AutoThresholder.Method.Default  ? "IJDefault" :
+		              method == AutoThresholder.Method.MinError ? "MinErrorI" : method.name();
+		try {
+			return Class.forName(AUTO_THRESHOLD_CLASS).getMethod(name, int[].class);
+		}
+		catch (Throwable e) {  // not installed or no such method
+			return null;
+		}
+	}
+
+	/**
+	 * Watershed separation of the particles, the last step of binarize()
+	 *
+	 * @param  channel  the binary channel (the particles are 255)
+	 * @param  is3d     2d/3d flag
+	 */
+	static void watershed(ImagePlus channel, boolean is3d) {
+		ImageStack stack = channel.getStack();
+		for (int n = firstSlice(channel, is3d); n <= lastSlice(channel, is3d); n++)
+			new EDM().toWatershed(stack.getProcessor(n));
+	}
+
+	/**
+	 * The slices a step works on: all in 3D, the current one in 2D
+	 *
+	 * @param  channel  the channel
+	 * @param  is3d     2d/3d flag
+	 * @return          the first slice
+	 */
+	private static int firstSlice(ImagePlus channel, boolean is3d) {
+		return is3d ? 1 : channel.getCurrentSlice();
+	}
+
+	/**
+	 * The slices a step works on: all in 3D, the current one in 2D
+	 *
+	 * @param  channel  the channel
+	 * @param  is3d     2d/3d flag
+	 * @return          the last slice
+	 */
+	private static int lastSlice(ImagePlus channel, boolean is3d) {
+		return is3d ? channel.getStackSize() : channel.getCurrentSlice();
+	}
+
+	/**
+	 * The clean-up of the plugin: smoothing, background subtraction, maximum filter,
+	 * subtraction of the mean, auto threshold and watershed (preprocess() and binarize()).
+	 * The masks always get an inverted LUT, with the particles 255
+	 */
+	public static class DefaultPreprocessor implements Preprocessor {
+		private final SynapseCounterParams params;   // the parameters
+		private final PixelKernels         kernels;  // kernels for smoothing, subtraction and binarization (null = ImageProcessor methods)
+
+		public DefaultPreprocessor(SynapseCounterParams params) {
+			this.params  = params;
+			this.kernels = PixelKernels.create(params.getKernels());
+		}
+
+		public BitMask process(ImagePlus channel) {
+			boolean is3d = params.is3d();
+			preprocess(channel, params.getRollBallRad(), params.getMaxFiltRad(), is3d, kernels);
+			binarize(channel, params.getThreshMethod(), is3d, true, kernels);
+			return BitMask.pack(channel, is3d, 255);
+		}
+	}
+
+	/**
+	 * The labelling of the plugin: MyParticleAnalyzer in 2D, MyParticleAnalyzer3D in 3D.
+	 * A new analyzer is used for every mask; the comparison of the run-based labelling
+	 * with the particle analyzer is done on the first 2D mask only
+	 */
+	public static class DefaultLabeller implements Labeller {
+		private final boolean is3d;  // 2d/3d flag
+		private Boolean useRuns;     // outcome of the comparison (null = not compared yet)
+
+		public DefaultLabeller(boolean is3d) {
+			this.is3d = is3d;
+		}
+
+		public Puncta label(BitMask mask, double minSize, double maxSize) {
+			if (is3d) {
+				MyParticleAnalyzer3D analyzer = new MyParticleAnalyzer3D(minSize, maxSize, 0.0, 1.0);
+				analyzer.analyze(mask);
+				return new Puncta(analyzer.getCount(), analyzer.getSizeMean(), analyzer.getCentroids());
+			}
+			MyParticleAnalyzer analyzer = new MyParticleAnalyzer(minSize, maxSize, 0.0, 1.0);
+			boolean runs;
+			synchronized (this) {
+				if (useRuns == null) {
+					analyzer.analyze(mask);
+					useRuns = analyzer.usesRuns();
+					return new Puncta(analyzer.getCount(), analyzer.getSizeMean(), analyzer.getCentroids());
+				}
+				runs = useRuns;
+			}
+			analyzer.setUseRuns(runs);
+			analyzer.analyze(mask);
+			return new Puncta(analyzer.getCount(), analyzer.getSizeMean(), analyzer.getCentroids());
+		}
+	}
+
+	/**
+	 * The colocalization of the plugin: AND of the masks
+	 */
+	public static class DefaultColocalizer implements Colocalizer {
+		public BitMask colocalize(BitMask pre, BitMask pos) {
+			// the title as given by ImageCalculator's "AND create"
+			String title = pre.getTitle() != null ? pre.getTitle().trim() : "";
+			int index = title.indexOf(' ');
+			if (index > -1) title = title.substring(0, index);
+			index = title.lastIndexOf('.');
+			if (index > 0) title = title.substring(0, index);
+			return pre.and(pos, "Result of " + title);
+		}
+	}
+}
@@ -0,0 +1,178 @@
+/*
+
+ Written by Andrey Rozenberg (jaera at yandex.com)
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+import ij.process.AutoThresholder;
+import java.util.Arrays;
+
+/**
+ * The parameters of SynapseCounterEngine.
+ * <p>
+ * Immutable, so that a parameters object can be shared by any number of engines
+ * and threads. The values are set with the Builder, which starts from the
+ * defaults (the same as those of the plugin):
+ * <pre>
+ * SynapseCounterParams params = new SynapseCounterParams.Builder()
+ *     .rollBallRad(20)
+ *     .threshMethod("Li")
+ *     .build();
+ * </pre>
+ */
+public final class SynapseCounterParams {
+
+	// defaults, also those of the plugin
+
+	public static final boolean DEF_is3d         = false;
+	public static final double  DEF_rollBallRad  = 10;
+	public static final double  DEF_maxFiltRad   = 2;
+	public static final String  DEF_threshMethod = "Otsu";
+	public static final double  DEF_minSizePre   = 10;
+	public static final double  DEF_maxSizePre   = 400;
+	public static final double  DEF_minSizePos   = 10;
+	public static final double  DEF_maxSizePos   = 400;
+	public static final double  DEF_maxPairDist  = 0;
+	public static final String  DEF_kernels      = "auto";  // one of PixelKernels.MODES
+
+	private final boolean is3d;                        // 2d/3d flag
+	private final double  rollBallRad, maxFiltRad;     // rolling ball rad. for background subtraction and rad. for "maximum" filter
+	private final String  threshMethod;                // auto threshold method
+	private final double  minSizePre, maxSizePre;      // min/max particle sizes
+	private final double  minSizePos, maxSizePos;      //
+	private final double  maxPairDist;                 // max. centroid distance of the pre-/postsyn. pairs [0 = no pairing]
+	private final String  kernels;                     // one of PixelKernels.MODES
+
+	private SynapseCounterParams(Builder builder) {
+		this.is3d         = builder.is3d;
+		this.rollBallRad  = builder.rollBallRad;
+		this.maxFiltRad   = builder.maxFiltRad;
+		this.threshMethod = builder.threshMethod;
+		this.minSizePre   = builder.minSizePre;
+		this.maxSizePre   = builder.maxSizePre;
+		this.minSizePos   = builder.minSizePos;
+		this.maxSizePos   = builder.maxSizePos;
+		this.maxPairDist  = builder.maxPairDist;
+		this.kernels      = builder.kernels;
+	}
+
+	public boolean is3d()            { return is3d; }
+	public double  getRollBallRad()  { return rollBallRad; }
+	public double  getMaxFiltRad()   { return maxFiltRad; }
+	public String  getThreshMethod() { return threshMethod; }
+	public double  getMinSizePre()   { return minSizePre; }
+	public double  getMaxSizePre()   { return maxSizePre; }
+	public double  getMinSizePos()   { return minSizePos; }
+	public double  getMaxSizePos()   { return maxSizePos; }
+	public double  getMaxPairDist()  { return maxPairDist; }
+	public String  getKernels()      { return kernels; }
+
+	/**
+	 * The min. size of the colocalized particles:
+	 * 1/3 of the smaller min. size of the pre- and postsynaptic particles
+	 *
+	 * @return  the size
+	 */
+	public double getMinSizeColoc() {
+		return Math.min(minSizePre, minSizePos) / 3.0;
+	}
+
+	/**
+	 * The max. size of the colocalized particles:
+	 * the larger max. size of the pre- and postsynaptic particles
+	 *
+	 * @return  the size
+	 */
+	public double getMaxSizeColoc() {
+		return Math.max(maxSizePre, maxSizePos);
+	}
+
+	/**
+	 * A builder initialized with these parameters, e.g. to derive a second configuration
+	 *
+	 * @return  the builder
+	 */
+	public Builder toBuilder() {
+		Builder builder = new Builder();
+		builder.is3d         = is3d;
+		builder.rollBallRad  = rollBallRad;
+		builder.maxFiltRad   = maxFiltRad;
+		builder.threshMethod = threshMethod;
+		builder.minSizePre   = minSizePre;
+		builder.maxSizePre   = maxSizePre;
+		builder.minSizePos   = minSizePos;
+		builder.maxSizePos   = maxSizePos;
+		builder.maxPairDist  = maxPairDist;
+		builder.kernels      = kernels;
+		return builder;
+	}
+
+	/**
+	 * Builder of the parameters, initialized with the defaults
+	 */
+	public static class Builder {
+		private boolean is3d         = DEF_is3d;
+		private double  rollBallRad  = DEF_rollBallRad;
+		private double  maxFiltRad   = DEF_maxFiltRad;
+		private String  threshMethod = DEF_threshMethod;
+		private double  minSizePre   = DEF_minSizePre;
+		private double  maxSizePre   = DEF_maxSizePre;
+		private double  minSizePos   = DEF_minSizePos;
+		private double  maxSizePos   = DEF_maxSizePos;
+		private double  maxPairDist  = DEF_maxPairDist;
+		private String  kernels      = DEF_kernels;
+
+		public Builder is3d(boolean is3d)                  { this.is3d = is3d;                 return this; }
+		public Builder rollBallRad(double rollBallRad)     { this.rollBallRad = rollBallRad;   return this; }
+		public Builder maxFiltRad(double maxFiltRad)       { this.maxFiltRad = maxFiltRad;     return this; }
+		public Builder threshMethod(String threshMethod)   { this.threshMethod = threshMethod; return this; }
+		public Builder maxPairDist(double maxPairDist)     { this.maxPairDist = maxPairDist;   return this; }
+		public Builder kernels(String kernels)             { this.kernels = kernels;           return this; }
+
+		public Builder sizePre(double minSize, double maxSize) {
+			this.minSizePre = minSize;
+			this.maxSizePre = maxSize;
+			return this;
+		}
+
+		public Builder sizePos(double minSize, double maxSize) {
+			this.minSizePos = minSize;
+			this.maxSizePos = maxSize;
+			return this;
+		}
+
+		/**
+		 * Check the values and create the parameters
+		 *
+		 * @return  the parameters
+		 * @throws  IllegalArgumentException if a value is out of range
+		 */
+		public SynapseCounterParams build() {
+			if (!(rollBallRad > 0))
+				throw new IllegalArgumentException("Rolling ball radius must be positive: " + rollBallRad);
+			if (!(maxFiltRad >= 0))
+				throw new IllegalArgumentException("Maximum filter radius must not be negative: " + maxFiltRad);
+			if (!Arrays.asList(AutoThresholder.getMethods()).contains(threshMethod))
+				throw new IllegalArgumentException("Unknown threshold method: " + threshMethod);
+			if (!(minSizePre >= 0 && minSizePre <= maxSizePre) || !(minSizePos >= 0 && minSizePos <= maxSizePos))
+				throw new IllegalArgumentException("Invalid particle size range");
+			if (!(maxPairDist >= 0))
+				throw new IllegalArgumentException("Max. pairing distance must not be negative: " + maxPairDist);
+			if (!Arrays.asList(PixelKernels.MODES).contains(kernels))
+				throw new IllegalArgumentException("Unknown kernels: " + kernels);
+			return new SynapseCounterParams(this);
+		}
+	}
+}
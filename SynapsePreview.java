@@ -0,0 +1,321 @@
+/*
+
+ Written by Andrey Rozenberg (jaera at yandex.com)
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+import ij.*;
+import java.awt.Label;
+
+/**
+ * Live preview of the binary masks and particle counts for the current image.
+ * <p>
+ * The output of every stage of the pipeline is cached, so that only the stages
+ * affected by a parameter change are recomputed: changing the particle sizes
+ * re-runs the labelling only, changing the threshold method skips the background
+ * subtraction etc. Requests are debounced and handled by a single worker thread;
+ * a newer request cancels the running one at the next stage boundary.
+ * After the preprocessing, the masks are combined and counted by the stages of
+ * SynapseCounterEngine the run uses, so that the counts are those of the run.
+ */
+public class SynapsePreview implements Runnable {
+
+	public static final int DELAY = 300;                         // debounce delay [ms]
+	public static final String[] TAGS = {"presyn", "postsyn", "coloc"};
+
+	private ImagePlus source;                                    // the image being previewed
+	private Label statusLabel;                                   // dialog label to report the counts in
+	private Thread worker;                                       // the worker thread
+	private Settings pending;                                    // the latest not yet handled request
+	private long requestTime;                                    // time of the latest request
+	private long generation = 0;                                 // incremented with each request
+	private volatile boolean stopped = false;                    // set by dispose()
+	private PixelKernels kernels;                                // per-pixel kernels (null = ImageJ commands only)
+	private SynapseCounterEngine.Colocalizer colocalizer;        // the colocalization of the run
+	private SynapseCounterEngine.Labeller[]  labellers;          // the labelling of the run in 2D and 3D
+
+	// stage caches: the key of each stage includes the keys of the previous ones
+
+	private String      channelsKey, preparedKey, masksKey, countsKey;
+	private ImagePlus[] channels;                                // pre- and post-synaptic channels
+	private ImagePlus[] prepared;                                // the channels after preprocess()
+	private BitMask[]   masks;                                   // binary pre-, post-synaptic and coloc. masks
+	private ImagePlus[] previews = new ImagePlus[3];             // the windows shown to the user
+
+	/**
+	 * The parameters the preview depends on
+	 */
+	public static class Settings {
+		String  type, preChannelTag, posChannelTag, threshMethod;
+		int     resizeWidth;
+		double  rollBallRad, maxFiltRad;
+		double  minSizePre, maxSizePre, minSizePos, maxSizePos;
+		boolean is3d;
+
+		String channelsKey() {
+			return type + "|" + preChannelTag + "|" + posChannelTag + "|" + resizeWidth;
+		}
+
+		String preparedKey() {
+			return channelsKey() + "|" + rollBallRad + "|" + maxFiltRad + "|" + is3d;
+		}
+
+		String masksKey() {
+			return preparedKey() + "|" + threshMethod;
+		}
+
+		String countsKey() {
+			return masksKey() + "|" + minSizePre + "|" + maxSizePre + "|" + minSizePos + "|" + maxSizePos;
+		}
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param source       the image to preview
+	 * @param statusLabel  label to show the counts in (may be null)
+	 */
+	public SynapsePreview(ImagePlus source, Label statusLabel) {
+		this.source      = source;
+		this.statusLabel = statusLabel;
+		this.kernels     = PixelKernels.create(Prefs.get("synapsecounter.kernels", Synapse_Counter.DEF_kernels));
+		this.colocalizer = new SynapseCounterEngine.DefaultColocalizer();
+		this.labellers   = new SynapseCounterEngine.Labeller[] {
+			new SynapseCounterEngine.DefaultLabeller(false), new SynapseCounterEngine.DefaultLabeller(true)
+		};
+		this.worker      = new Thread(this, "SynapseCounter preview");
+		this.worker.setPriority(Thread.MIN_PRIORITY);
+		this.worker.start();
+	}
+
+	/**
+	 * Schedule an update of the preview.
+	 * Returns immediately, the update starts once no further requests
+	 * have arrived for DELAY ms
+	 *
+	 * @param settings  the current parameters
+	 */
+	public synchronized void request(Settings settings) {
+		pending     = settings;
+		requestTime = System.currentTimeMillis();
+		generation++;
+		notifyAll();
+	}
+
+	/**
+	 * Stop the worker and close the preview windows.
+	 * Does not wait for the worker: it releases the caches itself
+	 * once the running stage is finished
+	 */
+	public void dispose() {
+		synchronized (this) {
+			stopped = true;
+			generation++;
+			notifyAll();
+		}
+		synchronized (previews) {
+			closeAll(previews);
+		}
+		if (source.getWindow() != null) WindowManager.setCurrentWindow(source.getWindow());
+	}
+
+	/**
+	 * The worker loop.
+	 * <p>
+	 * Implementation of Runnable.run()
+	 */
+	public void run() {
+		try {
+			loop();
+		}
+		finally {
+			masks = null;
+			closeAll(prepared);
+			closeAll(channels);
+		}
+	}
+
+	/**
+	 * Wait for the requests and handle them until stopped
+	 */
+	private void loop() {
+		while (true) {
+			Settings settings;
+			long myGeneration;
+			synchronized (this) {
+				try {
+					while (pending == null && !stopped) wait();
+					while (!stopped) {
+						long left = requestTime + DELAY - System.currentTimeMillis();
+						if (left <= 0) break;
+						wait(left);
+					}
+				}
+				catch (InterruptedException ie) {
+					return;
+				}
+				if (stopped) return;
+				settings     = pending;
+				pending      = null;
+				myGeneration = generation;
+			}
+			update(settings, myGeneration);
+		}
+	}
+
+	/**
+	 * Check whether the job has been superseded by a newer request
+	 *
+	 * @param  myGeneration  generation of the job
+	 * @return               true if cancelled
+	 */
+	private synchronized boolean cancelled(long myGeneration) {
+		return stopped || myGeneration != generation;
+	}
+
+	/**
+	 * Recompute the stages invalidated by the new settings and show the result
+	 *
+	 * @param settings      the parameters
+	 * @param myGeneration  generation of the job
+	 */
+	private void update(Settings settings, long myGeneration) {
+		if (!settings.channelsKey().equals(channelsKey)) {
+			showStatus("Preview: splitting channels...");
+			closeAll(channels);
+			channelsKey = null;
+			channels = Synapse_Counter.selectChannels(source, settings.type, settings.preChannelTag, settings.posChannelTag, source.getTitle(), settings.resizeWidth, null);
+			if (channels[0] == null || channels[1] == null) {
+				closeAll(channels);
+				channels = null;
+				showStatus("Preview: channel not found");
+				return;
+			}
+			channelsKey = settings.channelsKey();
+		}
+		if (cancelled(myGeneration)) return;
+
+		if (!settings.preparedKey().equals(preparedKey)) {
+			closeAll(prepared);
+			prepared    = null;
+			preparedKey = null;
+			ImagePlus[] myPrepared = new ImagePlus[2];
+			for (int j = 0; j < 2; j++) {
+				if (cancelled(myGeneration)) {
+					closeAll(myPrepared);
+					return;
+				}
+				showStatus("Preview: background subtraction (" + TAGS[j] + ")...");
+				myPrepared[j] = channels[j].duplicate();
+				SynapseCounterEngine.preprocess(myPrepared[j], settings.rollBallRad, settings.maxFiltRad, settings.is3d, kernels);
+			}
+			prepared    = myPrepared;
+			preparedKey = settings.preparedKey();
+		}
+		if (cancelled(myGeneration)) return;
+
+		if (!settings.masksKey().equals(masksKey)) {
+			masks    = null;
+			masksKey = null;
+			BitMask[] myMasks = new BitMask[3];
+			for (int j = 0; j < 2; j++) {
+				if (cancelled(myGeneration)) return;
+				showStatus("Preview: threshold (" + TAGS[j] + ")...");
+				ImagePlus myMask = prepared[j].duplicate();
+				Synapse_Counter.binarize(myMask, settings.threshMethod, settings.is3d, kernels);
+				myMasks[j] = BitMask.pack(myMask, settings.is3d, 255);
+				myMask.close();
+			}
+			myMasks[2] = colocalizer.colocalize(myMasks[0], myMasks[1]);
+			masks    = myMasks;
+			masksKey = settings.masksKey();
+			for (int j = 0; j < 3; j++) show(j, masks[j]);
+		}
+		if (cancelled(myGeneration)) return;
+
+		if (!settings.countsKey().equals(countsKey)) {
+			showStatus("Preview: counting...");
+			SynapseCounterParams params;
+			try {
+				params = new SynapseCounterParams.Builder()
+					.sizePre(settings.minSizePre, settings.maxSizePre)
+					.sizePos(settings.minSizePos, settings.maxSizePos)
+					.build();
+			} catch (IllegalArgumentException e) {
+				showStatus("Preview: " + e.getMessage());
+				return;
+			}
+			double[][] sizes = new double[][] {
+				{ params.getMinSizePre(),   params.getMaxSizePre()   },
+				{ params.getMinSizePos(),   params.getMaxSizePos()   },
+				{ params.getMinSizeColoc(), params.getMaxSizeColoc() }
+			};
+			SynapseCounterEngine.Labeller labeller = labellers[settings.is3d ? 1 : 0];
+			int[] counts = new int[3];
+			for (int j = 0; j < 3; j++) {
+				if (cancelled(myGeneration)) return;
+				counts[j] = labeller.label(masks[j], sizes[j][0], sizes[j][1]).getCount();
+			}
+			countsKey = settings.countsKey();
+			showStatus("Preview: " + TAGS[0] + " " + counts[0] + ", " + TAGS[1] + " " + counts[1] + ", " + TAGS[2] + " " + counts[2]);
+		}
+	}
+
+	/**
+	 * Show a mask in the respective preview window, reusing the window if possible
+	 *
+	 * @param j     mask number
+	 * @param mask  the mask
+	 */
+	private void show(int j, BitMask mask) {
+		ImagePlus image = mask.toImagePlus(null);
+		synchronized (previews) {
+			if (stopped) return;
+			if (previews[j] == null || previews[j].getWindow() == null) {
+				image.setTitle("Preview " + TAGS[j] + " - " + source.getTitle());
+				previews[j] = image;
+				previews[j].show();
+			}
+			else {
+				previews[j].setStack(image.getStack());
+				previews[j].setCalibration(image.getCalibration());
+				previews[j].updateAndDraw();
+			}
+		}
+	}
+
+	/**
+	 * Report progress in the dialog and in the ImageJ status bar
+	 *
+	 * @param msg  the message
+	 */
+	private void showStatus(String msg) {
+		if (statusLabel != null) statusLabel.setText(msg);
+		IJ.showStatus(msg);
+	}
+
+	/**
+	 * Close all images in the array
+	 *
+	 * @param images  the images, may be null or contain nulls
+	 */
+	private static void closeAll(ImagePlus[] images) {
+		if (images == null) return;
+		for (int j = 0; j < images.length; j++) {
+			if (images[j] != null) images[j].close();
+			images[j] = null;
+		}
+	}
+}
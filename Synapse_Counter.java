@@ -26,6 +26,14 @@ import ij.io.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.lang.Math.*;
 
 public class Synapse_Counter implements PlugIn, ActionListener, DialogListener, ItemListener {
@@ -38,17 +46,29 @@ public class Synapse_Counter implements PlugIn, ActionListener, DialogListener,
 	private String threshMethod;                                 // auto threshold method
 	private double minSizePre, maxSizePre;                       // min/max particle sizes
 	private double minSizePos, maxSizePos;                       //
+	private double maxPairDist;                                  // max. centroid distance of the pre-/postsyn. pairs [0 = no pairing]
 	private int resizeWidth;                                     // resize width [0 = no resize]
 	private TextField inputDirField, outputDirField;             // TextField's for folder choice
 	private String inputDir, outputDir;                          // folders
 	private boolean is3d;                                        // 2d/3d flag
 	private Button inputButton, outputButton, resetButton;       // buttons for folder choice and the "reset" button
+	private Label previewLabel;                                  // label to report the preview counts in
+	private SynapsePreview preview;                              // live preview for the current image (null if off)
 
 	private String oldType;                                      // for type tracking
-	private ImageCalculator imageCalculator;                     // ImageCalculator
+	private PixelBufferPool pool;                                // pixel arrays reused across the images
+	private long memoryBudget;                                   // max. heap the batch is allowed to use [bytes]
+	private PixelKernels kernels;                                // per-pixel kernels (null = ImageJ commands only)
+	private SparseDetector sparse;                               // coarse-to-fine clean-up of sparse images (null if off)
+	private int sparseChecks;                                    // number of channels still to be compared with the full-frame clean-up
+	private double sparseCoverage;                               // sum of the fractions of the channels of the current image filtered
+	private int sparseFallbacks;                                 // channels of the current image the samples were not representative for
 	private ResultsTable resultsTable;                           // table to save the results in
-	private MyParticleAnalyzer[] partAnalyzers;                  // array of our MyParticleAnalyzer   instances
-	private MyParticleAnalyzer3D[] partAnalyzers3D;              // array of our MyParticleAnalyzer3D instances
+	private ArrayList<FolderSummary> summaries;                  // summaries of the finished folders (incl. their subfolders)
+	private ArrayList<FolderSummary> openSummaries;              // summaries of the folders in progress, the current one last
+	private int summaryInterval;                                 // images between the summary checkpoints [0 = at the end only]
+	private int summarized;                                      // images summarized so far
+	private SynapseCounterEngine engine;                         // the analysis, with cleanUp() as the preprocessing
 	private CheckboxGroup inputBox, dimBox;                      // checkbox for the type of the input source
 	private Checkbox doOpenedImageButton, doBatchButton, doSubFoldersButton, is2dButton, is3dButton; // checkbox for the respective switchers
 	private boolean doOutput, doOpenedImage, doSubFolders;       // task switchers
@@ -60,28 +80,32 @@ public class Synapse_Counter implements PlugIn, ActionListener, DialogListener,
 	public static final String[] types          = {"Multi-channel", "RGB"};        // types of input images
 	public static final String[] channelChoices = {"C1", "C2", "C3", "C4", "C5"};  // choice of channels for multi-channel images
 	public static final String[] colorChoices   = {"green", "blue", "red"};        // choice of channels for RGB images
+	private static final String[] rgbChannels   = {"red", "green", "blue"};        // RGB channels in the ColorProcessor order
 
 	// defaults
 
 	public static final String  DEF_type             = types[0];
-	public static final double  DEF_rollBallRad      = 10;
-	public static final double  DEF_maxFiltRad       = 2;
-	public static final String  DEF_threshMethod     = "Otsu";
-	public static final double  DEF_minSizePre       = 10;
-	public static final double  DEF_maxSizePre       = 400;
-	public static final double  DEF_minSizePos       = 10;
-	public static final double  DEF_maxSizePos       = 400;
+	public static final double  DEF_rollBallRad      = SynapseCounterParams.DEF_rollBallRad;
+	public static final double  DEF_maxFiltRad       = SynapseCounterParams.DEF_maxFiltRad;
+	public static final String  DEF_threshMethod     = SynapseCounterParams.DEF_threshMethod;
+	public static final double  DEF_minSizePre       = SynapseCounterParams.DEF_minSizePre;
+	public static final double  DEF_maxSizePre       = SynapseCounterParams.DEF_maxSizePre;
+	public static final double  DEF_minSizePos       = SynapseCounterParams.DEF_minSizePos;
+	public static final double  DEF_maxSizePos       = SynapseCounterParams.DEF_maxSizePos;
+	public static final double  DEF_maxPairDist      = SynapseCounterParams.DEF_maxPairDist;
 	public static final int     DEF_resizeWidth      = 0;
 	public static final String  DEF_preChannelTagRGB = colorChoices[0];
 	public static final String  DEF_posChannelTagRGB = colorChoices[1];
 	public static final String  DEF_preChannelTag    = channelChoices[0];
 	public static final String  DEF_posChannelTag    = channelChoices[2];
-	public static final boolean DEF_is3d             = false;
-
-	// default command for AutoThreshold
-
-	private String autoThresholdCmd = "Auto Threshold";
-	private boolean autoThresholdCmdChecked = false;
+	public static final boolean DEF_is3d             = SynapseCounterParams.DEF_is3d;
+	public static final double  DEF_memoryBudget     = 0.75;  // fraction of the max. heap (the "synapsecounter.memoryBudget" pref)
+	public static final String  DEF_kernels          = SynapseCounterParams.DEF_kernels;  // the "synapsecounter.kernels" pref
+	public static final boolean DEF_sparse           = false;  // the "synapsecounter.sparse" pref
+	public static final int     SPARSE_CHECKS        = 2;      // channels compared with the full-frame clean-up
+	public static final double  SPARSE_TOLERANCE     = 0.01;   // max. fraction of differing mask pixels
+	public static final int     DEF_summaryInterval  = 100;    // the "synapsecounter.summaryInterval" pref
+	public static final String  SUMMARY_FILE         = "SynapseCounter_summary.csv";
 
 	/**
 	 * The main program entry.
@@ -103,38 +127,64 @@ public class Synapse_Counter implements PlugIn, ActionListener, DialogListener,
 	 * and initializes our particle analyzers
 	 */
 	private void runSynapseCounter() {
-		resultsTable     = new ResultsTable();
-		imageCalculator  = new ImageCalculator();
-		double minSize = Math.min(minSizePre, minSizePos) / 3.0;  // colocalization min particle size
-		double maxSize = Math.max(maxSizePre, maxSizePos);        // colocalization max particle size
-		if (is3d) {
-			partAnalyzers3D    = new MyParticleAnalyzer3D[3];
-			partAnalyzers3D[0] = new MyParticleAnalyzer3D(minSizePre, maxSizePre, 0.0, 1.0);
-			partAnalyzers3D[1] = new MyParticleAnalyzer3D(minSizePos, maxSizePos, 0.0, 1.0);
-			partAnalyzers3D[2] = new MyParticleAnalyzer3D(minSize,    maxSize,    0.0, 1.0);
-		} else {
-			partAnalyzers    = new MyParticleAnalyzer[3];
-			partAnalyzers[0] = new MyParticleAnalyzer(minSizePre, maxSizePre, 0.0, 1.0);
-			partAnalyzers[1] = new MyParticleAnalyzer(minSizePos, maxSizePos, 0.0, 1.0);
-			partAnalyzers[2] = new MyParticleAnalyzer(minSize,    maxSize,    0.0, 1.0);
+		SynapseCounterParams params;
+		try {
+			params = new SynapseCounterParams.Builder()
+				.is3d(is3d)
+				.rollBallRad(rollBallRad)
+				.maxFiltRad(maxFiltRad)
+				.threshMethod(threshMethod)
+				.sizePre(minSizePre, maxSizePre)
+				.sizePos(minSizePos, maxSizePos)
+				.maxPairDist(maxPairDist)
+				.kernels(Prefs.get("synapsecounter.kernels", DEF_kernels))
+				.build();
+		} catch (IllegalArgumentException e) {
+			IJ.error("SynapseCounter", e.getMessage());
+			return;
 		}
+		resultsTable     = new ResultsTable();
+		memoryBudget     = (long)(IJ.maxMemory() * Prefs.get("synapsecounter.memoryBudget", DEF_memoryBudget));
+		pool             = new PixelBufferPool(memoryBudget / 4);
+		kernels          = PixelKernels.create(params.getKernels());
+		sparse           = !is3d && Prefs.get("synapsecounter.sparse", DEF_sparse) ?
+			new SparseDetector(rollBallRad, maxFiltRad, threshMethod, kernels) : null;
+		sparseChecks     = SPARSE_CHECKS;
+		// the steps of the default preprocessing, plus the sparse mode and the LUT of "Make Binary"
+		engine           = new SynapseCounterEngine(params, new SynapseCounterEngine.Preprocessor() {
+			public BitMask process(ImagePlus channel) {
+				cleanUp(channel);
+				return BitMask.pack(channel, is3d, 255);
+			}
+		}, null, null);
 
 		if (doOpenedImage) {
 			runSynapseCounterOpenedImage();
 		}
 		else {
+			summaries       = new ArrayList<FolderSummary>();
+			openSummaries   = new ArrayList<FolderSummary>();
+			summaryInterval = (int)Prefs.get("synapsecounter.summaryInterval", DEF_summaryInterval);
+			summarized      = 0;
 			runSynapseCounterBatch("");
+			showSummary();
 		}
+		pool.clear();
 		IJ.showProgress(1, 1);
 	}
 
 	/**
 	 * Launch analysis of images in a (sub)folder.
-	 * Recursive if subfolders are to be searched
+	 * Recursive if subfolders are to be searched.
+	 * The results of the images are summarized as they come,
+	 * and the summary of the folder is merged into that of its parent when done
 	 *
 	 * @param  subDir sub-directory
+	 * @return        summary of the folder including its subfolders
 	 */
-	private void runSynapseCounterBatch(String subDir) {
+	private FolderSummary runSynapseCounterBatch(String subDir) {
+		FolderSummary summary = new FolderSummary(subDir.length() == 0 ? "." : subDir.substring(0, subDir.length() - File.separator.length()));
+		openSummaries.add(summary);
 		Opener myOpener = new Opener();
 		myOpener.setSilentMode(true);
 		String[]  files = (new File(inputDir + subDir)).list();
@@ -145,22 +195,226 @@ public class Synapse_Counter implements PlugIn, ActionListener, DialogListener,
 			file = inputDir + subDir + files[i];
 			if (file.startsWith(".")) continue;
 			if ((new File(file)).isDirectory()) {
-				if (doSubFolders) runSynapseCounterBatch(subDir + files[i] + File.separator);
+				if (doSubFolders) summary.merge(runSynapseCounterBatch(subDir + files[i] + File.separator));
 				continue;
 			}
 			if (!doSubFolders) {
 				IJ.showStatus(i + "/" + files.length);
 				IJ.showProgress(i, files.length);
 			}
+			if (isContainer(myOpener, file)) {
+				SeriesReader reader = SeriesReader.open(file);
+				if (reader != null) {
+					try {
+						runSynapseCounterSeries(reader, subDir, files[i]);
+					} finally {
+						reader.close();
+					}
+					continue;
+				}
+			}
+			if (!admit(estimateDecodedBytes(myOpener, file), file)) continue;
 			image = myOpener.openImage(file);
 			if (image == null) {
 				IJ.log("Couldn't open '" + file + "'");
 				continue;
 			}
+			if (!admit(estimateWorkingSet(image), file)) {
+				removeIMP(image);
+				continue;
+			}
 			if (!processImage(image, subDir, files[i])) continue;
+			summarize();
+		}
+		openSummaries.remove(openSummaries.size() - 1);
+		if (summary.getImages() > 0) summaries.add(summary);
+		return summary;
+	}
+
+	/**
+	 * Launch analysis of the series of a container file, one by one.
+	 * Only the selected channels of the current series are decoded
+	 * (in 2D mode only their first plane), and each series gets its own results row
+	 *
+	 * @param  reader  the reader of the file
+	 * @param  subDir  sub-directory
+	 * @param  file    file basename
+	 */
+	private void runSynapseCounterSeries(SeriesReader reader, String subDir, String file) {
+		boolean  isRGB  = type.equals("RGB");
+		String[] tags   = isRGB ? rgbChannels : channelChoices;
+		int      preC   = Arrays.asList(tags).indexOf(preChannelTag);
+		int      posC   = Arrays.asList(tags).indexOf(posChannelTag);
+		if (preC < 0 || posC < 0) {
+			IJ.log(subDir + file + ": channel " + (preC < 0 ? preChannelTag : posChannelTag) + " not found");
+			return;
+		}
+		int[]    wanted = preC == posC ? new int[] { preC } : new int[] { Math.min(preC, posC), Math.max(preC, posC) };
+		// the series images contain the wanted channels only, so the tags are renumbered unless RGB
+		String   preTag = isRGB ? preChannelTag : channelChoices[preC == wanted[0] ? 0 : 1];
+		String   posTag = isRGB ? posChannelTag : channelChoices[posC == wanted[0] ? 0 : 1];
+		for (int s = 0; s < reader.getSeriesCount(); s++) {
+			if (IJ.escapePressed()) break;
+			String label = subDir + file + " (series " + (s + 1) + ")";
+			IJ.showStatus(label);
+			if (wanted[wanted.length - 1] >= reader.getChannelCount(s)) {
+				IJ.log(label + ": channel " + tags[wanted[wanted.length - 1]] + " not found");
+				continue;
+			}
+			if (!admit(reader.estimateBytes(s, wanted, is3d), label)) continue;
+			ImagePlus image = reader.openSeries(s, wanted, is3d);
+			if (image == null) continue;
+			if (!admit(estimateWorkingSet(image), label)) {
+				removeIMP(image);
+				continue;
+			}
+			if (processImage(image, subDir, file, s + 1, preTag, posTag)) summarize();
 		}
 	}
 
+	/**
+	 * Add the last results row to the summary of the current folder
+	 * and show the summary at the checkpoints
+	 */
+	private void summarize() {
+		FolderSummary summary = openSummaries.get(openSummaries.size() - 1);
+		summary.addImage(resultsTable, resultsTable.getCounter() - 1, "File", "Series");
+		if (summaryInterval > 0 && ++summarized % summaryInterval == 0) showSummary();
+	}
+
+	/**
+	 * Show the summaries of the folders, one row per folder, and save them if
+	 * the intermediate files are saved. During the run the folders in progress
+	 * are listed with the images analyzed so far, so no results row is read twice
+	 */
+	private void showSummary() {
+		ArrayList<FolderSummary> mySummaries = new ArrayList<FolderSummary>(summaries);
+		FolderSummary deeper = null;
+		for (int k = openSummaries.size() - 1; k >= 0; k--) {
+			FolderSummary partial = new FolderSummary(openSummaries.get(k).getFolder());
+			partial.merge(openSummaries.get(k));
+			if (deeper != null) partial.merge(deeper);
+			if (partial.getImages() > 0) mySummaries.add(partial);
+			deeper = partial;
+		}
+		if (mySummaries.isEmpty()) return;
+		Collections.sort(mySummaries, new Comparator<FolderSummary>() {
+			public int compare(FolderSummary a, FolderSummary b) {
+				return a.getFolder().compareTo(b.getFolder());
+			}
+		});
+		ResultsTable summaryTable = new ResultsTable();
+		for (FolderSummary summary : mySummaries) summary.addTo(summaryTable);
+		summaryTable.show("SynapseCounter summary");
+		if (!doOutput) return;
+		try {
+			summaryTable.saveAs(outputDir + File.separator + SUMMARY_FILE);
+		} catch (IOException e) {
+			IJ.log("Couldn't save '" + outputDir + File.separator + SUMMARY_FILE + "': " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Decide whether the file may be a container of several series.
+	 * Only the files ImageJ cannot open on its own and OME-TIFF files are checked,
+	 * so that the usual images are opened as before
+	 *
+	 * @param  myOpener  the Opener
+	 * @param  file      the file
+	 * @return           true if the file is to be tried with SeriesReader
+	 */
+	private boolean isContainer(Opener myOpener, String file) {
+		String name = file.toLowerCase();
+		return myOpener.getFileType(file) == Opener.UNKNOWN || name.endsWith(".ome.tif") || name.endsWith(".ome.tiff");
+	}
+
+	/**
+	 * Memory admission control for the batch mode.
+	 * The image is admitted if it fits into the memory budget next to the live data
+	 * (see liveBytes()). If it only fits without the pooled arrays, the pool is dropped
+	 *
+	 * @param  bytes  estimated size of the data to be allocated
+	 * @param  file   file name for the log
+	 * @return        true if the image may be processed
+	 */
+	private boolean admit(long bytes, String file) {
+		long pooled = pool.getBytes();
+		long live   = Math.max(0, liveBytes() - pooled);
+		if (IJ.debugMode) IJ.log("Memory for '" + file + "': " + (bytes >> 20) + " MB needed, " + (live >> 20) + " MB live, " +
+			(pooled >> 20) + " MB pooled, " + (memoryBudget >> 20) + " MB budget");
+		if (live + pooled + bytes <= memoryBudget) return true;
+		if (live + bytes <= memoryBudget) {
+			pool.clear();
+			return true;
+		}
+		IJ.log("Skipping '" + file + "': about " + (bytes >> 20) + " MB needed, " + (live >> 20) + " MB estimated live, only " +
+			(Math.max(0, memoryBudget - live) >> 20) + " MB left of the " + (memoryBudget >> 20) + " MB budget");
+		return false;
+	}
+
+	/**
+	 * The live data on the heap.
+	 * For the young generation pools (those without usage thresholds) the usage
+	 * after their last collection is taken, so that garbage not collected yet is
+	 * not counted. The old generation is only collected by mixed or full
+	 * collections (G1 reports 0 until then), so its current usage is taken.
+	 * If the pools report nothing, the used heap is taken
+	 *
+	 * @return  size in bytes
+	 */
+	private static long liveBytes() {
+		long live = 0;
+		for (MemoryPoolMXBean memoryPool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (memoryPool.getType() != MemoryType.HEAP) continue;
+			MemoryUsage usage     = memoryPool.getUsage();
+			MemoryUsage collected = memoryPool.getCollectionUsage();
+			if (usage == null) continue;
+			if (collected != null && !memoryPool.isUsageThresholdSupported()) live += collected.getUsed();
+			else if (collected != null) live += Math.max(collected.getUsed(), usage.getUsed());
+			else live += usage.getUsed();
+		}
+		if (live == 0) live = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+		return live;
+	}
+
+	/**
+	 * Estimate the size of the decoded image before opening it.
+	 * Exact for uncompressed TIFF, otherwise the file size is used as a lower bound
+	 *
+	 * @param  myOpener  the Opener
+	 * @param  file      the file
+	 * @return           size in bytes
+	 */
+	private long estimateDecodedBytes(Opener myOpener, String file) {
+		if (myOpener.getFileType(file) == Opener.TIFF) {
+			FileInfo[] info = Opener.getTiffFileInfo(file);
+			if (info != null) {
+				long bytes = 0;
+				for (int i = 0; i < info.length; i++)
+					bytes += (long)info[i].width * info[i].height * info[i].getBytesPerPixel() * Math.max(1, info[i].nImages);
+				return bytes;
+			}
+		}
+		return (new File(file)).length();
+	}
+
+	/**
+	 * Estimate the memory needed to process an opened image:
+	 * the two channel copies, the float working planes of the filters,
+	 * the three bit-packed masks and one mask restored to 8 bits for the analysis
+	 *
+	 * @param  image  the image
+	 * @return        size in bytes
+	 */
+	private long estimateWorkingSet(ImagePlus image) {
+		long plane    = (long)image.getWidth() * image.getHeight();
+		long planes   = (long)image.getNSlices() * image.getNFrames();
+		int  channelBytes = image.getType() == ImagePlus.COLOR_RGB ? 1 : image.getBytesPerPixel();
+		if (resizeWidth > 0 && resizeWidth < image.getWidth())
+			plane = plane * resizeWidth / image.getWidth() * resizeWidth / image.getWidth();
+		return 2 * plane * planes * channelBytes + 2 * plane * 4 + 3 * plane * planes / 8 + plane * planes;
+	}
+
 	/**
 	 * Launch analysis of the image currently opened
 	 */
@@ -176,75 +430,199 @@ public class Synapse_Counter implements PlugIn, ActionListener, DialogListener,
 	 * @return        true if OK, false otherwise
 	 */
 	private boolean processImage(ImagePlus image, String subDir, String file) {
+		return processImage(image, subDir, file, 0, preChannelTag, posChannelTag);
+	}
+
+	/**
+	 * The image analysis function itself.
+	 *
+	 * @param  image   the image
+	 * @param  subDir  sub-directory
+	 * @param  file    file basename
+	 * @param  series  series number within a container file [0 = the file is a single image]
+	 * @param  preTag  presynaptic channel of the image
+	 * @param  posTag  postsynaptic channel of the image
+	 * @return         true if OK, false otherwise
+	 */
+	private boolean processImage(ImagePlus image, String subDir, String file, int series, String preTag, String posTag) {
 		int row;
-		String title;
-		String preTitle;
-		String posTitle;
-		String fileName = subDir + file;
-		if (type.equals("RGB")) {
-			preTitle = preChannelTag;
-			posTitle = posChannelTag;
-		}
-		else {
-			preTitle = preChannelTag + "-" + file;
-			posTitle = posChannelTag + "-" + file;
-		}
-		ImagePlus[] allChannels = ChannelSplitter.split(image);
+		String fileName = series > 0 ? subDir + file + " (series " + series + ")" : subDir + file;  // for the log
+		String baseName = series > 0 ? file + "-series" + series : file;                          // for the titles and the saved files
+		ImagePlus[] selChannels = selectChannels(image, type, preTag, posTag, baseName, resizeWidth, pool);
 		if (!doOpenedImage) removeIMP(image);
-		ImagePlus preChannel = null;
-		ImagePlus posChannel = null;
-		ImagePlus synChannel;
-		for (int j = 0; j < allChannels.length; j++) {
-			title = allChannels[j].getTitle();
-			// IJ.log(title);
-			if      (title.equals(preTitle))
-				preChannel = allChannels[j];
-			else if (title.equals(posTitle))
-				posChannel = allChannels[j];
-			else
-				removeIMP(allChannels[j]);
-		}
+		ImagePlus preChannel = selChannels[0];
+		ImagePlus posChannel = selChannels[1];
 		if (preChannel == null) {
 			IJ.log(fileName + ": channel " + preChannelTag + " not found");
+			removeIMP(posChannel);
 			return false;
 		}
 		if (posChannel == null) {
 			IJ.log(fileName + ": channel " + posChannelTag + " not found");
+			removeIMP(preChannel);
 			return false;
 		}
-		cleanUp(preChannel);
-		cleanUp(posChannel);
-
-		String suffix = is3d ? " stack" : "";
-		synChannel = imageCalculator.run("AND create" + suffix, preChannel, posChannel);
+		SynapseCounterEngine.Result result;
+		boolean sparseOn = sparse != null;
+		sparseCoverage   = 0;
+		sparseFallbacks  = 0;
+		try {
+			result = engine.analyze(preChannel, posChannel);
+		} catch (IllegalArgumentException e) {
+			IJ.log(fileName + ": " + e.getMessage());
+			return false;
+		} finally {
+			removeIMP(preChannel);
+			removeIMP(posChannel);
+		}
 		row = resultsTable.getCounter();
-		resultsTable.setValue("File", row, fileName);
+		resultsTable.setValue("File", row, subDir + file);
+		if (series > 0) resultsTable.setValue("Series", row, series);
 
-		ImagePlus[] myChannels = new ImagePlus[] { preChannel, posChannel, synChannel };
-		String[]    myPrefixes = new String[]    { "Presyn.",  "Postsyn.", "Coloc."   };
-		String[]    myTags     = new String[]    { "presyn",   "postsyn",  "coloc"    };
-		int   myCount;
-		double sizeMean;
+		String[] myPrefixes = new String[] { "Presyn.", "Postsyn.", "Coloc." };
+		String[] myTags     = new String[] { "presyn",  "postsyn",  "coloc"  };
 		for (int j = 0; j < 3; j++) {
-			if (is3d) {
-				partAnalyzers3D[j].resetSummaries();
-				partAnalyzers3D[j].analyze(myChannels[j]);
-				myCount  = partAnalyzers3D[j].getCount();
-				sizeMean = partAnalyzers3D[j].getSizeMean();
-			} else {
-				partAnalyzers[j].resetSummaries();
-				partAnalyzers[j].analyze(myChannels[j]);
-				myCount  = partAnalyzers[j].getCount();
-				sizeMean = partAnalyzers[j].getSizeMean();
-			}
-			removeOrShowIMP(myChannels[j], doOpenedImage, doOutput, subDir, file, myTags[j]);
-			resultsTable.setValue(myPrefixes[j] + " N",         row, myCount);
-			resultsTable.setValue(myPrefixes[j] + " mean size", row, sizeMean);
+			removeOrShowMask(result.getMask(j), doOpenedImage, doOutput, subDir, baseName, myTags[j]);
+			resultsTable.setValue(myPrefixes[j] + " N",         row, result.getPuncta(j).getCount());
+			resultsTable.setValue(myPrefixes[j] + " mean size", row, result.getPuncta(j).getSizeMean());
+		}
+		PunctaPairing pairing = result.getPairing();
+		if (pairing != null) {
+			resultsTable.setValue("Pairs N",               row, pairing.getCount());
+			resultsTable.setValue("Pair distance mean",    row, pairing.getDistanceMean());
+			resultsTable.setValue("Pair distance SD",      row, pairing.getDistanceSD());
+			resultsTable.setValue("Pair distance median",  row, pairing.getDistanceMedian());
+		}
+		if (sparseOn) {
+			resultsTable.setValue("Sparse coverage",  row, sparseCoverage / 2);
+			resultsTable.setValue("Sparse fallbacks", row, sparseFallbacks);
 		}
 		resultsTable.show("SynapseCounter results");
 		return true;
 	}
 
+	/**
+	 * The final step in tracing a mask: restore the 8-bit image if it is to be saved or shown.
+	 *
+	 * @param  mask     the mask
+	 * @param  show     flag to decide, whether the mask is to be shown to the user
+	 * @param  save     flag to optionally save the image on disk
+	 * @param  subDir   sub-folder for saving
+	 * @param  filename file basename for saving
+	 * @param  tag      channel file suffix for saving
+	 */
+	private void removeOrShowMask(BitMask mask, boolean show, boolean save, String subDir, String filename, String tag) {
+		if (!show && !save) return;
+		removeOrShowIMP(mask.toImagePlus(pool), show, save, subDir, filename, tag);
+	}
+
+	/**
+	 * Extract the pre- and post-synaptic channels from the image
+	 *
+	 * @param  image          the image
+	 * @param  type           image type
+	 * @param  preChannelTag  presynaptic channel
+	 * @param  posChannelTag  postsynaptic channel
+	 * @param  file           file basename (used in the channel titles)
+	 * @param  resizeWidth    resize width [0 = no resize]
+	 * @param  pool           pool to take the pixel arrays from (may be null)
+	 * @return                the two channels, either may be null if not found
+	 */
+	static ImagePlus[] selectChannels(ImagePlus image, String type, String preChannelTag, String posChannelTag, String file, int resizeWidth, PixelBufferPool pool) {
+		return new ImagePlus[] {
+			extractChannel(image, type, preChannelTag, file, resizeWidth, pool),
+			extractChannel(image, type, posChannelTag, file, resizeWidth, pool)
+		};
+	}
+
+	/**
+	 * Copy a single channel of the image, optionally resizing it.
+	 * Does the same as picking the channel from ChannelSplitter.split()
+	 * and running "Size... constrain average interpolation=Bilinear" on it,
+	 * but without copying the channels that are not needed.
+	 * When downsizing, the channel is reduced directly from the decoded
+	 * image, without a full-resolution copy
+	 *
+	 * @param  image        the image
+	 * @param  type         image type
+	 * @param  channelTag   the channel
+	 * @param  file         file basename (used in the channel title)
+	 * @param  pool         pool to take the pixel arrays from (may be null)
+	 * @return              the channel or null if not found
+	 */
+	static ImagePlus extractChannel(ImagePlus image, String type, String channelTag, String file, int resizeWidth, PixelBufferPool pool) {
+		boolean isRGB = image.getType() == ImagePlus.COLOR_RGB;
+		if (type.equals("RGB") != isRGB) return null;
+		String[] tags = isRGB ? rgbChannels : channelChoices;
+		int c = 0;
+		for (int j = 0; j < tags.length; j++) {
+			if (tags[j].equals(channelTag)) c = j + 1;
+		}
+		if (c == 0 || (!isRGB && c > image.getNChannels())) return null;
+
+		int width     = image.getWidth();
+		int height    = image.getHeight();
+		int bitDepth  = isRGB ? 8 : image.getBitDepth();
+		int dstWidth  = width;
+		int dstHeight = height;
+		if (resizeWidth > 0) {  // the same as in Resizer
+			dstWidth  = resizeWidth;
+			dstHeight = (int)Math.round(dstWidth * ((double)height / width));
+		}
+		boolean resize = dstWidth != width || dstHeight != height;
+		ImageStack source = image.getStack();
+		ImageStack stack  = new ImageStack(dstWidth, dstHeight);
+		for (int t = 1; t <= image.getNFrames(); t++) {
+			for (int z = 1; z <= image.getNSlices(); z++) {
+				int n = image.getStackIndex(isRGB ? 1 : c, z, t);
+				ImageProcessor ip = source.getProcessor(n);
+				if (resize && Downsizer.canDownsize(width, height, dstWidth, dstHeight)) {
+					Object pixels = pool != null ? pool.get(dstWidth, dstHeight, bitDepth) : null;
+					if (pixels == null) pixels = (isRGB ? new ByteProcessor(dstWidth, dstHeight) : ip.createProcessor(dstWidth, dstHeight)).getPixels();
+					Downsizer.downsize(ip, c, dstWidth, dstHeight, pixels);
+					stack.addSlice(source.getSliceLabel(n), pixels);
+					continue;
+				}
+				if (resize) {  // upsizing
+					ImageProcessor ip2 = isRGB ? ((ColorProcessor)ip).getChannel(c, null) : ip;
+					ip2.setInterpolationMethod(ImageProcessor.BILINEAR);
+					stack.addSlice(source.getSliceLabel(n), ip2.resize(dstWidth, dstHeight, true));
+					continue;
+				}
+				Object pixels = pool != null ? pool.get(width, height, bitDepth) : null;
+				if (isRGB) {
+					ByteProcessor bp = pixels != null ? new ByteProcessor(width, height, (byte[])pixels) : null;
+					stack.addSlice(source.getSliceLabel(n), ((ColorProcessor)ip).getChannel(c, bp));
+				}
+				else if (pixels != null) {
+					System.arraycopy(ip.getPixels(), 0, pixels, 0, width * height);
+					stack.addSlice(source.getSliceLabel(n), pixels);
+				}
+				else {
+					stack.addSlice(source.getSliceLabel(n), ip.duplicate());
+				}
+			}
+		}
+		ImagePlus channel = new ImagePlus(isRGB ? channelTag : channelTag + "-" + file, stack);
+		channel.setDimensions(1, image.getNSlices(), image.getNFrames());
+		channel.setCalibration(image.getCalibration());
+		Calibration cal = channel.getCalibration();
+		if (resize && cal.scaled()) {
+			cal.pixelWidth  *= (double)width  / dstWidth;
+			cal.pixelHeight *= (double)height / dstHeight;
+		}
+		if (!isRGB) {
+			if (image.isComposite()) {
+				LUT lut = ((CompositeImage)image).getChannelLut(c);
+				channel.setDisplayRange(lut.min, lut.max);
+			}
+			else {
+				channel.setDisplayRange(image.getDisplayRangeMin(), image.getDisplayRangeMax());
+			}
+		}
+		return channel;
+	}
+
 	/**
 	 * Remove channel
 	 *
@@ -252,7 +630,7 @@ public class Synapse_Counter implements PlugIn, ActionListener, DialogListener,
 	 */
 	private void removeIMP(ImagePlus channel) {
 		if (channel == null) return;
-		channel.close();
+		pool.release(channel);
 		channel = null;
 	}
 
@@ -299,7 +677,7 @@ public class Synapse_Counter implements PlugIn, ActionListener, DialogListener,
 			channel.show();
 		}
 		else {
-			channel.close();
+			pool.release(channel);
 			channel = null;
 		}
 	}
@@ -310,21 +688,61 @@ public class Synapse_Counter implements PlugIn, ActionListener, DialogListener,
 	 * @param  channel  the channel
 	 */
 	private void cleanUp(ImagePlus channel) {
-		if (!autoThresholdCmdChecked && Menus.getCommands().get(autoThresholdCmd) == null)
-			autoThresholdCmd += "...";
-		autoThresholdCmdChecked = true;
+		if (sparse != null) {
+			ImagePlus reference = null;
+			if (sparseChecks > 0) {
+				reference = new ImagePlus(channel.getTitle(), channel.getProcessor().duplicate());
+				reference.setCalibration(channel.getCalibration());
+			}
+			int fallbacks = sparse.getFallbacks();
+			if (sparse.cleanUp(channel)) {
+				sparseCoverage += reference == null || checkSparse(channel, reference) ? sparse.getCoverage() : 1;
+				return;
+			}
+			sparseFallbacks += sparse.getFallbacks() - fallbacks;
+		}
+		sparseCoverage += 1;
+		SynapseCounterEngine.preprocess(channel, rollBallRad, maxFiltRad, is3d, kernels);  // resized by extractChannel()
+		binarize(channel, threshMethod, is3d, kernels);
+	}
 
-		if (resizeWidth > 0)
-			IJ.run(channel, "Size...", "width=" + resizeWidth + " constrain average interpolation=Bilinear");
-		String suffix = is3d ? " stack" : "";
-		IJ.run(channel, "Smooth", suffix);
-		IJ.run(channel, "Subtract Background...", "rolling=" + rollBallRad + suffix);
-		IJ.run(channel, "Maximum...", "radius=" + maxFiltRad + suffix);
-		final double mean = (double)channel.getStatistics(Measurements.MEAN).mean;
-		IJ.run(channel, "Subtract...", "value=" + mean + suffix);
-		IJ.run(channel, autoThresholdCmd, "method=[" + threshMethod + "] white" + suffix);
-		IJ.run(channel, "Make Binary", suffix);
-		IJ.run(channel, "Watershed", suffix);
+	/**
+	 * Compare the result of the sparse clean-up with the full-frame one.
+	 * If the masks differ by more than SPARSE_TOLERANCE of the particle pixels,
+	 * the full-frame result is used and the sparse clean-up is switched off
+	 *
+	 * @param  channel    the channel after the sparse clean-up
+	 * @param  reference  copy of the current slice of the channel before the clean-up
+	 * @return            false if the full-frame result is used
+	 */
+	private boolean checkSparse(ImagePlus channel, ImagePlus reference) {
+		sparseChecks--;
+		SynapseCounterEngine.preprocess(reference, rollBallRad, maxFiltRad, false, kernels);
+		binarize(reference, threshMethod, false, kernels);
+		BitMask mine   = BitMask.pack(channel,   false);
+		BitMask theirs = BitMask.pack(reference, false);
+		long differences = mine != null && theirs != null ? mine.countDifferences(theirs) : -1;
+		long particles   = theirs != null ? theirs.count() : 0;
+		if (differences >= 0 && differences <= SPARSE_TOLERANCE * particles) return true;
+		Object pixels = reference.getProcessor().getPixels();
+		System.arraycopy(pixels, 0, channel.getProcessor().getPixels(), 0, java.lang.reflect.Array.getLength(pixels));
+		IJ.log("SynapseCounter: sparse detection differs from the full-frame clean-up in " + differences + " of " +
+			particles + " particle pixels, using the full frame");
+		sparse = null;
+		return false;
+	}
+
+	/**
+	 * The second part of the clean-up (see SynapseCounterEngine.binarize()).
+	 * The masks get the LUT "Make Binary" would give them
+	 *
+	 * @param  channel       the preprocessed channel
+	 * @param  threshMethod  auto threshold method
+	 * @param  is3d          2d/3d flag
+	 * @param  kernels       kernels for the binarization (null = ImageProcessor.getf())
+	 */
+	static void binarize(ImagePlus channel, String threshMethod, boolean is3d, PixelKernels kernels) {
+		SynapseCounterEngine.binarize(channel, threshMethod, is3d, !Prefs.blackBackground, kernels);
 	}
 
 	/**
@@ -382,6 +800,7 @@ public class Synapse_Counter implements PlugIn, ActionListener, DialogListener,
 	 * @return       true if OK, false otherwise
 	 */
 	private boolean invokeDialog() {
+		stopPreview();
 		if (gd != null) {
 			gd.removeAll();
 			gd.dispose();
@@ -420,6 +839,9 @@ public class Synapse_Counter implements PlugIn, ActionListener, DialogListener,
 		p.setLayout(new FlowLayout(FlowLayout.CENTER, 0, 0));
 		is2dButton.addItemListener(this);
 		is3dButton.addItemListener(this);
+		// the dimensionality is part of the preview settings: notify dialogItemChanged() as for the other fields
+		is2dButton.addItemListener(gd);
+		is3dButton.addItemListener(gd);
 		p.add(new Label("Input dimesionality:"));
 		p.add(is2dButton);
 		p.add(is3dButton);
@@ -487,6 +909,15 @@ public class Synapse_Counter implements PlugIn, ActionListener, DialogListener,
 
 		gd.addNumericField("Min. postsynaptic particle size:", Prefs.get("synapsecounter.minSizePos", DEF_minSizePos), 0, 6, "px² or voxels");
 		gd.addNumericField("Max. postsynaptic particle size:", Prefs.get("synapsecounter.maxSizePos", DEF_maxSizePos), 0, 6, "px² or voxels");
+		gd.addNumericField("Max. pairing distance:",           Prefs.get("synapsecounter.maxPairDist", DEF_maxPairDist), 2, 6, "units (0 = off)");
+
+		gd.addCheckbox(" Preview (current image)", false);
+		p = new Panel();
+		p.setLayout(new FlowLayout(FlowLayout.CENTER, 0, 0));
+		previewLabel = new Label("", Label.CENTER);
+		previewLabel.setPreferredSize(new Dimension(400, 20));
+		p.add(previewLabel);
+		gd.addPanel(p);
 
 		p = new Panel();
 		p.setLayout(new FlowLayout(FlowLayout.CENTER, 0, 0));
@@ -500,6 +931,7 @@ public class Synapse_Counter implements PlugIn, ActionListener, DialogListener,
 		switchType(type);
 
 		gd.showDialog();
+		stopPreview();
 		if (gd.wasCanceled()) return false;
 
 		type	      = gd.getNextChoice();
@@ -513,6 +945,7 @@ public class Synapse_Counter implements PlugIn, ActionListener, DialogListener,
 		maxSizePre    = gd.getNextNumber();
 		minSizePos    = gd.getNextNumber();
 		maxSizePos    = gd.getNextNumber();
+		maxPairDist   = gd.getNextNumber();
 		doSubFolders  = doSubFoldersButton.getState();
 		doOutput      = gd.getNextBoolean();
 		doOpenedImage = (inputBox.getSelectedCheckbox() == doOpenedImageButton);
@@ -539,6 +972,7 @@ public class Synapse_Counter implements PlugIn, ActionListener, DialogListener,
 		Prefs.set("synapsecounter.maxSizePre",     maxSizePre   );
 		Prefs.set("synapsecounter.minSizePos",     minSizePos   );
 		Prefs.set("synapsecounter.maxSizePos",     maxSizePos   );
+		Prefs.set("synapsecounter.maxPairDist",    maxPairDist  );
 		Prefs.set("synapsecounter.inputDir",       inputDir     );
 		Prefs.set("synapsecounter.outputDir",      outputDir    );
 		Prefs.set("synapsecounter.doOpenedImage",  doOpenedImage);
@@ -561,6 +995,7 @@ public class Synapse_Counter implements PlugIn, ActionListener, DialogListener,
 		Prefs.set("synapsecounter.maxSizePre",       DEF_maxSizePre      );
 		Prefs.set("synapsecounter.minSizePos",       DEF_minSizePos      );
 		Prefs.set("synapsecounter.maxSizePos",       DEF_maxSizePos      );
+		Prefs.set("synapsecounter.maxPairDist",      DEF_maxPairDist     );
 		Prefs.set("synapsecounter.resizeWidth",      DEF_resizeWidth     );
 		Prefs.set("synapsecounter.preChannelTagRGB", DEF_preChannelTagRGB);
 		Prefs.set("synapsecounter.posChannelTagRGB", DEF_posChannelTagRGB);
@@ -638,7 +1073,9 @@ public class Synapse_Counter implements PlugIn, ActionListener, DialogListener,
 	 */
 	public boolean dialogItemChanged(GenericDialog myGd, AWTEvent e) {
 		if (e == null) return true;
-		switchType(myGd.getNextChoice());
+		SynapsePreview.Settings settings = new SynapsePreview.Settings();
+		settings.type = myGd.getNextChoice();
+		switchType(settings.type);
 		doOutput     = myGd.getNextBoolean();
 		if (doOutput) {
 			outputDirField.setText(outputDir);
@@ -649,9 +1086,56 @@ public class Synapse_Counter implements PlugIn, ActionListener, DialogListener,
 			outputDirField.setText("");
 			outputButton.setEnabled(false);
 		}
+		settings.preChannelTag = myGd.getNextChoice();
+		settings.posChannelTag = myGd.getNextChoice();
+		settings.resizeWidth   = (int)myGd.getNextNumber();
+		settings.rollBallRad   = myGd.getNextNumber();
+		settings.maxFiltRad    = myGd.getNextNumber();
+		settings.threshMethod  = myGd.getNextChoice();
+		settings.minSizePre    = myGd.getNextNumber();
+		settings.maxSizePre    = myGd.getNextNumber();
+		settings.minSizePos    = myGd.getNextNumber();
+		settings.maxSizePos    = myGd.getNextNumber();
+		myGd.getNextNumber();  // the pairing distance does not affect the preview
+		settings.is3d          = (dimBox.getSelectedCheckbox() == is3dButton);
+		if (myGd.getNextBoolean() && !myGd.invalidNumber())
+			updatePreview(settings);
+		else
+			stopPreview();
 		return true;
 	}
 
+	/**
+	 * Start the preview if needed and pass it the current settings
+	 *
+	 * @param settings  the current dialog settings
+	 */
+	private void updatePreview(SynapsePreview.Settings settings) {
+		if (settings.preChannelTag.equals(settings.posChannelTag)) {
+			previewLabel.setText("Preview: the two channels are identical");
+			return;
+		}
+		if (preview == null) {
+			ImagePlus image = WindowManager.getCurrentImage();
+			if (image == null) {
+				previewLabel.setText("Preview: no image is opened");
+				return;
+			}
+			preview = new SynapsePreview(image, previewLabel);
+		}
+		preview.request(settings);
+	}
+
+	/**
+	 * Stop the preview, if running, and close its windows
+	 */
+	private void stopPreview() {
+		if (preview == null) return;
+		preview.dispose();
+		preview = null;
+		if (previewLabel != null) previewLabel.setText("");
+	}
+
 	/**
 	 * Yet another event listener to apply relevant changes to the dialog 
 	 * depending on user-specified options
@@ -0,0 +1,226 @@
+/*
+
+ Written by Andrey Rozenberg (jaera at yandex.com)
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+import jdk.incubator.vector.*;
+
+/**
+ * The kernels of PixelKernels written with the Java Vector API.
+ * <p>
+ * Needs Java 16+ started with --add-modules jdk.incubator.vector;
+ * PixelKernels.create() falls back to the scalar loops if this class
+ * cannot be loaded. The pixels are widened to int lanes, so all arithmetic
+ * is exact, including the division by 9 which is done with shifts and
+ * multiplications only. The columns at the image edges and the tails of
+ * the rows that do not fill a whole vector use the scalar code.
+ * The 8- and 16-bit vectors have as many lanes as the int vectors, but at
+ * least 64 bits (the smallest shape). With 128-bit int vectors the 8-bit
+ * vectors have more lanes than the int ones, and the 8-bit kernels use
+ * the scalar loops.
+ */
+public class VectorPixelKernels extends PixelKernels {
+
+	private static final VectorSpecies<Integer> INTS   = IntVector.SPECIES_PREFERRED;
+	private static final int                    LANES  = INTS.length();
+	private static final VectorSpecies<Byte>    BYTES  = VectorSpecies.of(byte.class,  shape(LANES * 8));
+	private static final VectorSpecies<Short>   SHORTS = VectorSpecies.of(short.class, shape(LANES * 16));
+	private static final boolean HAS_BYTES  = BYTES.length()  == LANES;  // whether the 8-bit kernels are vectorized
+	private static final boolean HAS_SHORTS = SHORTS.length() == LANES;  // whether the 16-bit kernels are vectorized
+
+	/**
+	 * A get for the name of the implementation
+	 *
+	 * @return  the name
+	 */
+	public String getName() {
+		return "vector (" + INTS.vectorBitSize() + "-bit" + (HAS_BYTES ? "" : ", scalar 8-bit") + ")";
+	}
+
+	protected void smooth(byte[] src, byte[] dst, int width, int height) {
+		if (!HAS_BYTES) {
+			super.smooth(src, dst, width, height);
+			return;
+		}
+		int[] colSum = new int[width];
+		for (int y = 0; y < height; y++) {
+			int up   = (y > 0 ? y - 1 : 0) * width;
+			int mid  = y * width;
+			int down = (y < height - 1 ? y + 1 : y) * width;
+			int x = 0;
+			for (; x <= width - LANES; x += LANES) {
+				IntVector a = widen(src, up   + x);
+				IntVector b = widen(src, mid  + x);
+				IntVector c = widen(src, down + x);
+				a.add(b).add(c).intoArray(colSum, x);
+			}
+			for (; x < width; x++)
+				colSum[x] = (src[up + x] & 0xff) + (src[mid + x] & 0xff) + (src[down + x] & 0xff);
+			dst[mid] = (byte)((2 * colSum[0] + colSum[1] + 4) / 9);
+			x = 1;
+			for (; x <= width - 1 - LANES; x += LANES)
+				narrow(divide9(horizontalSum(colSum, x)), dst, mid + x);
+			for (; x < width - 1; x++)
+				dst[mid + x] = (byte)((colSum[x - 1] + colSum[x] + colSum[x + 1] + 4) / 9);
+			dst[mid + width - 1] = (byte)((colSum[width - 2] + 2 * colSum[width - 1] + 4) / 9);
+		}
+	}
+
+	protected void smooth(short[] src, short[] dst, int width, int height) {
+		if (!HAS_SHORTS) {
+			super.smooth(src, dst, width, height);
+			return;
+		}
+		int[] colSum = new int[width];
+		for (int y = 0; y < height; y++) {
+			int up   = (y > 0 ? y - 1 : 0) * width;
+			int mid  = y * width;
+			int down = (y < height - 1 ? y + 1 : y) * width;
+			int x = 0;
+			for (; x <= width - LANES; x += LANES) {
+				IntVector a = widen(src, up   + x);
+				IntVector b = widen(src, mid  + x);
+				IntVector c = widen(src, down + x);
+				a.add(b).add(c).intoArray(colSum, x);
+			}
+			for (; x < width; x++)
+				colSum[x] = (src[up + x] & 0xffff) + (src[mid + x] & 0xffff) + (src[down + x] & 0xffff);
+			dst[mid] = (short)((2 * colSum[0] + colSum[1] + 4) / 9);
+			x = 1;
+			for (; x <= width - 1 - LANES; x += LANES)
+				narrow(divide9(horizontalSum(colSum, x)), dst, mid + x);
+			for (; x < width - 1; x++)
+				dst[mid + x] = (short)((colSum[x - 1] + colSum[x] + colSum[x + 1] + 4) / 9);
+			dst[mid + width - 1] = (short)((colSum[width - 2] + 2 * colSum[width - 1] + 4) / 9);
+		}
+	}
+
+	protected void subtract(byte[] pixels, int value) {
+		if (!HAS_BYTES) {
+			super.subtract(pixels, value);
+			return;
+		}
+		int i = 0;
+		for (; i <= pixels.length - LANES; i += LANES)
+			narrow(widen(pixels, i).sub(value).max(0).min(255), pixels, i);
+		for (; i < pixels.length; i++) {
+			int v = (pixels[i] & 0xff) - value;
+			pixels[i] = (byte)(v < 0 ? 0 : (v > 255 ? 255 : v));
+		}
+	}
+
+	protected void subtract(short[] pixels, int value) {
+		if (!HAS_SHORTS) {
+			super.subtract(pixels, value);
+			return;
+		}
+		int i = 0;
+		for (; i <= pixels.length - LANES; i += LANES)
+			narrow(widen(pixels, i).sub(value).max(0).min(65535), pixels, i);
+		for (; i < pixels.length; i++) {
+			int v = (pixels[i] & 0xffff) - value;
+			pixels[i] = (short)(v < 0 ? 0 : (v > 65535 ? 65535 : v));
+		}
+	}
+
+	protected void threshold(byte[] pixels, int threshold, byte[] mask) {
+		if (!HAS_BYTES) {
+			super.threshold(pixels, threshold, mask);
+			return;
+		}
+		int i = 0;
+		for (; i <= pixels.length - LANES; i += LANES)
+			narrow(binarize(widen(pixels, i), threshold), mask, i);
+		for (; i < pixels.length; i++)
+			mask[i] = (pixels[i] & 0xff) > threshold ? (byte)255 : (byte)0;
+	}
+
+	protected void threshold(short[] pixels, int threshold, byte[] mask) {
+		if (!HAS_BYTES || !HAS_SHORTS) {
+			super.threshold(pixels, threshold, mask);
+			return;
+		}
+		int i = 0;
+		for (; i <= pixels.length - LANES; i += LANES)
+			narrow(binarize(widen(pixels, i), threshold), mask, i);
+		for (; i < pixels.length; i++)
+			mask[i] = (pixels[i] & 0xffff) > threshold ? (byte)255 : (byte)0;
+	}
+
+	/**
+	 * The shape of the given size, at least the smallest one
+	 */
+	private static VectorShape shape(int bits) {
+		return VectorShape.forBitSize(Math.max(bits, VectorShape.S_64_BIT.vectorBitSize()));
+	}
+
+	/**
+	 * Load unsigned 8-bit pixels into int lanes
+	 */
+	private static IntVector widen(byte[] pixels, int offset) {
+		return ((IntVector)ByteVector.fromArray(BYTES, pixels, offset).convertShape(VectorOperators.B2I, INTS, 0)).and(0xff);
+	}
+
+	/**
+	 * Load unsigned 16-bit pixels into int lanes
+	 */
+	private static IntVector widen(short[] pixels, int offset) {
+		return ((IntVector)ShortVector.fromArray(SHORTS, pixels, offset).convertShape(VectorOperators.S2I, INTS, 0)).and(0xffff);
+	}
+
+	/**
+	 * Store int lanes (0 to 255) as 8-bit pixels
+	 */
+	private static void narrow(IntVector v, byte[] pixels, int offset) {
+		((ByteVector)v.convertShape(VectorOperators.I2B, BYTES, 0)).intoArray(pixels, offset);
+	}
+
+	/**
+	 * Store int lanes (0 to 65535) as 16-bit pixels
+	 */
+	private static void narrow(IntVector v, short[] pixels, int offset) {
+		((ShortVector)v.convertShape(VectorOperators.I2S, SHORTS, 0)).intoArray(pixels, offset);
+	}
+
+	/**
+	 * 255 for the lanes above the threshold, 0 for the others
+	 */
+	private static IntVector binarize(IntVector v, int threshold) {
+		return IntVector.zero(INTS).blend(255, v.compare(VectorOperators.GT, threshold));
+	}
+
+	/**
+	 * Sums of three neighbouring column sums plus the rounding term, centred at x
+	 */
+	private static IntVector horizontalSum(int[] colSum, int x) {
+		IntVector left   = IntVector.fromArray(INTS, colSum, x - 1);
+		IntVector centre = IntVector.fromArray(INTS, colSum, x);
+		IntVector right  = IntVector.fromArray(INTS, colSum, x + 1);
+		return left.add(centre).add(right).add(4);
+	}
+
+	/**
+	 * Exact integer division by 9 of the sums of up to 9 * 65535 + 4.
+	 * With s = 512 * hi + lo we have s = 9 * 56 * hi + (8 * hi + lo), and the
+	 * second term is small enough for the multiply-shift division by 9 to be exact
+	 */
+	private static IntVector divide9(IntVector sum) {
+		IntVector hi = sum.lanewise(VectorOperators.LSHR, 9);
+		IntVector lo = sum.and(511);
+		IntVector t  = hi.lanewise(VectorOperators.LSHL, 3).add(lo);
+		return hi.mul(56).add(t.mul(7282).lanewise(VectorOperators.LSHR, 16));
+	}
+}
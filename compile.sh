@@ -1,6 +1,10 @@
 name=Synapse_Counter
 imagej=/opt/Fiji.app # or other relevant location
-javac "$name.java" MyParticleAnalyzer.java MyParticleAnalyzer3D.java -cp "$imagej"/jars/*:"$imagej"/plugins/*:. -Xlint:unchecked
-jar -cf "$name.jar" $name.class MyParticleAnalyzer.class MyParticleAnalyzer3D.class plugins.config
+javac "$name.java" MyParticleAnalyzer.java MyParticleAnalyzer3D.java SynapsePreview.java PixelBufferPool.java Downsizer.java PixelKernels.java BitMask.java PunctaPairing.java SeriesReader.java SparseDetector.java FolderSummary.java SynapseCounterParams.java SynapseCounterEngine.java -cp "$imagej"/jars/*:"$imagej"/plugins/*:. -Xlint:unchecked
+# optional: needs Java 16+, the scalar kernels are used without it
+javac --add-modules jdk.incubator.vector VectorPixelKernels.java -cp "$imagej"/jars/*:. || echo "VectorPixelKernels skipped"
+# optional: needs Bio-Formats (part of Fiji), container files are opened as single images without it
+javac BioFormatsSeriesReader.java -cp "$imagej"/jars/*:"$imagej"/plugins/*:. || echo "BioFormatsSeriesReader skipped"
+jar -cf "$name.jar" *.class plugins.config
 mv "$name.jar" "$imagej/plugins/"
 rm *.class